@@ -19,10 +19,16 @@ package jsyntaxpane;
  *
  * @author Ayman Al-Sairafi
  */
-public abstract class DefaultLexer implements Lexer {
+public abstract class DefaultLexer implements RestartableLexer {
     
     protected int tokenStart;
     protected int tokenLength;
+    /**
+     * Returned by yylex when tokens are added to a TokenList sink
+     */
+    static final Token SINK_TOKEN = new Token(TokenType.DEFAULT, 0, 0);
+    private TokenList sink;
+    private int sinkOffset;
 
     /**
      * Helper method to create and return a new Token from of TokenType
@@ -37,7 +43,41 @@ public abstract class DefaultLexer implements Lexer {
             int newStart, int newLength) {
         tokenStart = newStart;
         tokenLength = newLength;
-        return new Token(type, tStart, tLength);
+        return token(type, tStart, tLength);
+    }
+
+    /**
+     * Return a new Token, or add it to the sink if there is one.  Lexers
+     * should create all their tokens with this method.
+     * @param type
+     * @param tStart
+     * @param tLength
+     * @return
+     */
+    protected Token token(TokenType type, int tStart, int tLength) {
+        return token(type, tStart, tLength, (byte) 0);
+    }
+
+    /**
+     * Return a new paired Token, or add it to the sink if there is one.
+     * @param type
+     * @param tStart
+     * @param tLength
+     * @param pairValue
+     * @return
+     */
+    protected Token token(TokenType type, int tStart, int tLength, byte pairValue) {
+        if (sink != null) {
+            sink.add(type, tStart + sinkOffset, tLength, pairValue);
+            return SINK_TOKEN;
+        }
+        return new Token(type, tStart, tLength, pairValue);
+    }
+
+    @Override
+    public void setTokenSink(TokenList sink, int offset) {
+        this.sink = sink;
+        this.sinkOffset = offset;
     }
 
     /**
@@ -49,4 +89,26 @@ public abstract class DefaultLexer implements Lexer {
     protected CharSequence getTokenSrring() {
         return yytext();
     }
+
+    /**
+     * {@inheritDoc}
+     * Lexers that keep more state than the lexical state and the pending
+     * tokenStart and tokenLength must override this and restoreState.
+     */
+    @Override
+    public LexerState saveState() {
+        int state = yystate();
+        if (state == 0) {
+            return LexerState.INITIAL;
+        }
+        int pos = yychar() + yylength();
+        return new LexerState(state, tokenStart - pos, tokenLength);
+    }
+
+    @Override
+    public void restoreState(LexerState state) {
+        yybegin(state.getState());
+        tokenStart = state.getTokenStart();
+        tokenLength = state.getTokenLength();
+    }
 }
@@ -16,19 +16,24 @@ package jsyntaxpane;
 import java.awt.Color;
 import java.util.logging.Level;
 import java.awt.Font;
-import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 import javax.swing.JEditorPane;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
 import javax.swing.text.DefaultEditorKit;
 import javax.swing.text.Document;
 import javax.swing.text.Element;
@@ -52,31 +57,68 @@ import jsyntaxpane.util.JarServiceProvider;
  */
 public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 
+    /**
+     * The font set on the EditorPanes.  It is found on the first install,
+     * or by getDefaultFont, and is null until then.
+     */
     public static Font DEFAULT_FONT;
     private static Set<String> CONTENTS = new HashSet<String>();
     private static boolean initialized = false;
-    private Lexer lexer;
+    public static final String PROPERTY_LEXER_POOL = "LexerPool";
+    /**
+     * The Lexers of this kit.  Each document gets its own Lexer from here.
+     */
+    private final LexerPool lexers;
     private static final Logger LOG = Logger.getLogger(DefaultSyntaxKit.class.getName());
     public static final Pattern COMMA_REGEX = Pattern.compile("\\w+,\\w+");
     private List<SyntaxComponent> editorComponents = new ArrayList<SyntaxComponent>();
     private Map<String, SyntaxAction> editorActions = new HashMap<String, SyntaxAction>();
     /**
-     * Main Configuration of JSyntaxPane
+     * True if the editor is tracked by the ParseScheduler, which is only
+     * done when the documents of this kit are parsed in the background.
+     */
+    private boolean scheduled;
+    /**
+     * Main Configuration of JSyntaxPane.  It is read by getConfig when first
+     * needed.
      */
     private static Configuration CONFIG;
+    /**
+     * The documents created by the kits, with the name of their kit, so
+     * their parse settings can be read again when the configuration changes.
+     */
+    private static final Map<SyntaxDocument, String> DOCUMENTS =
+            new WeakHashMap<SyntaxDocument, String>();
 
+    /**
+     * Create a new Kit for the given language.  Each document of the kit is
+     * given its own Lexer of the same class, so the class must have a public
+     * no-args constructor, unless createLexer is overridden.
+     * @param lexer the first Lexer to use
+     */
+    public DefaultSyntaxKit(Lexer lexer) {
+        super();
+        lexers = LexerPool.forClass(lexer.getClass());
+        lexers.setMaxIdle(getConfig().getPrefixInteger(getClass().getSimpleName(),
+                PROPERTY_LEXER_POOL, 0));
+        lexers.release(lexer);
+    }
 
-    static {
-        initKit();
+    /**
+     * Return a Lexer for a new document or a tokenizing job.  It is not used
+     * by any other document, so documents can be lexed at the same time.
+     * A job should give it back to getLexerPool when done.
+     * @return a Lexer of this kit
+     */
+    public Lexer createLexer() {
+        return lexers.borrow();
     }
 
     /**
-     * Create a new Kit for the given language 
-     * @param lexer 
+     * @return the pool the Lexers of this kit are taken from
      */
-    public DefaultSyntaxKit(Lexer lexer) {
-        super();
-        this.lexer = lexer;
+    public LexerPool getLexerPool() {
+        return lexers;
     }
 
     @Override
@@ -86,7 +128,7 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
 
     @Override
     public View create(Element element) {
-        return new SyntaxView(element, CONFIG, this.getClass().getSimpleName());
+        return new SyntaxView(element, getConfig(), this.getClass().getSimpleName());
     }
 
     /**
@@ -98,23 +140,25 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
      */
     @Override
     public void install(JEditorPane editorPane) {
+        long start = System.nanoTime();
         super.install(editorPane);
-        editorPane.setFont(DEFAULT_FONT);
+        Configuration config = getConfig();
+        editorPane.setFont(getDefaultFont());
         Keymap km_parent = JTextComponent.getKeymap(JTextComponent.DEFAULT_KEYMAP);
         Keymap km_new = JTextComponent.addKeymap(null, km_parent);
         String kitName = this.getClass().getSimpleName();
-        Color caretColor = CONFIG.getPrefixColor(kitName, "CaretColor", Color.BLACK);
+        Color caretColor = config.getPrefixColor(kitName, "CaretColor", Color.BLACK);
         editorPane.setCaretColor(caretColor);
         addSyntaxActions(km_new, kitName);
         editorPane.setKeymap(km_new);
         // install the components to the editor:
-        String[] components = CONFIG.getPrefixPropertyList(kitName, "Components");
+        String[] components = config.getPrefixPropertyList(kitName, "Components");
         for (String c : components) {
             try {
                 @SuppressWarnings("unchecked")
                 Class<SyntaxComponent> compClass = (Class<SyntaxComponent>) Class.forName(c);
                 SyntaxComponent comp = compClass.newInstance();
-                comp.config(CONFIG, kitName);
+                comp.config(config, kitName);
                 comp.install(editorPane);
                 editorComponents.add(comp);
             } catch (InstantiationException ex) {
@@ -125,6 +169,12 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
                 LOG.log(Level.SEVERE, null, ex);
             }
         }
+        scheduled = config.getPrefixBoolean(kitName,
+                SyntaxDocument.PROPERTY_BACKGROUND_PARSE, false);
+        if (scheduled) {
+            ParseScheduler.getDefault().install(editorPane);
+        }
+        logTime("Installed " + kitName, start);
     }
 
     @Override
@@ -133,6 +183,10 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
             c.deinstall(editorPane);
         }
         editorComponents.clear();
+        if (scheduled) {
+            ParseScheduler.getDefault().deinstall(editorPane);
+            scheduled = false;
+        }
     }
 
     /**
@@ -144,7 +198,7 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
         // look at all keys that either start with prefix.Action, or
         // that start with Action.
 
-        Configuration actionsConf = CONFIG.subConfig(prefix, "Action.");
+        Configuration actionsConf = getConfig().subConfig(prefix, "Action.");
 
         for (String actionName : actionsConf.stringPropertyNames()) {
             String[] values = Configuration.COMMA_SEPARATOR.split(
@@ -153,7 +207,7 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
             SyntaxAction action = editorActions.get(actionClass);
             if (action == null) {
                 action = createAction(actionClass);
-                action.config(CONFIG, prefix, actionName);
+                action.config(getConfig(), prefix, actionName);
             }
             String keyStrokeString = values[1];
             KeyStroke ks = KeyStroke.getKeyStroke(keyStrokeString);
@@ -202,7 +256,72 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
      */
     @Override
     public Document createDefaultDocument() {
-        return new SyntaxDocument(lexer);
+        return configure(new SyntaxDocument(createLexer()));
+    }
+
+    /**
+     * Create a document with the text of the given file.  The file is
+     * mapped into memory with a MappedContent instead of being read, so
+     * large files open quickly, and take little memory until edited.
+     * Set the document on the EditorPane with setDocument, after setting
+     * this kit.
+     * @param file
+     * @param charset the charset of the text in the file
+     * @return the new document
+     * @throws IOException if the file cannot be mapped
+     */
+    public SyntaxDocument createDocument(File file, Charset charset)
+            throws IOException {
+        MappedContent content = new MappedContent(file, charset);
+        SyntaxDocument doc = configure(new SyntaxDocument(createLexer(), content));
+        doc.putProperty(EndOfLineStringProperty, content.getLineSeparator());
+        return doc;
+    }
+
+    private SyntaxDocument configure(SyntaxDocument doc) {
+        String kitName = this.getClass().getSimpleName();
+        configure(doc, kitName, getConfig());
+        synchronized (DOCUMENTS) {
+            DOCUMENTS.put(doc, kitName);
+        }
+        return doc;
+    }
+
+    /**
+     * Set the parse settings of the document from the config, using the
+     * properties with the prefix of the given kit.  Only the settings that
+     * differ are set, and background parsing is turned on before lazy
+     * parsing is turned off, so the rest of the document is not lexed on
+     * this thread then.
+     * @param doc
+     * @param kitName
+     * @param config
+     */
+    private static void configure(SyntaxDocument doc, String kitName,
+            Configuration config) {
+        boolean lazy = config.getPrefixBoolean(kitName,
+                SyntaxDocument.PROPERTY_LAZY_PARSE, false);
+        boolean incremental = config.getPrefixBoolean(kitName,
+                SyntaxDocument.PROPERTY_INCREMENTAL_PARSE, false);
+        boolean background = config.getPrefixBoolean(kitName,
+                SyntaxDocument.PROPERTY_BACKGROUND_PARSE, false);
+        boolean parallel = config.getPrefixBoolean(kitName,
+                SyntaxDocument.PROPERTY_PARALLEL_PARSE, false);
+        if (background && !doc.isBackgroundParse()) {
+            doc.setBackgroundParse(true);
+        }
+        if (lazy != doc.isLazyParse()) {
+            doc.setLazyParse(lazy);
+        }
+        if (incremental != doc.isIncremental()) {
+            doc.setIncremental(incremental);
+        }
+        if (!background && doc.isBackgroundParse()) {
+            doc.setBackgroundParse(false);
+        }
+        if (parallel != doc.isParallelParse()) {
+            doc.setParallelParse(parallel);
+        }
     }
 
     /**
@@ -212,30 +331,66 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
      * corresponding ContentType of the JEditorPane.  After this is called,
      * you can simply call the editor.setCOntentType("text/java") on the 
      * control and you will be done.
+     * Only the names of the kits are registered, a kit class is loaded when
+     * its content type is first used.  The configuration is read again when
+     * next needed, and the default font is found on the first install.
      */
-    public static void initKit() {
-        // attempt to find a suitable default font
-        CONFIG = new Configuration(JarServiceProvider.readProperties("jsyntaxpane.config"));
-
-        GraphicsEnvironment ge = GraphicsEnvironment.getLocalGraphicsEnvironment();
-        String[] fonts = ge.getAvailableFontFamilyNames();
-        Arrays.sort(fonts);
-        if (Arrays.binarySearch(fonts, "Courier new") >= 0) {
-            DEFAULT_FONT = new Font("Courier New", Font.PLAIN, 12);
-        } else if (Arrays.binarySearch(fonts, "Courier") >= 0) {
-            DEFAULT_FONT = new Font("Courier", Font.PLAIN, 12);
-        } else if (Arrays.binarySearch(fonts, "Monospaced") >= 0) {
-            DEFAULT_FONT = new Font("Monospaced", Font.PLAIN, 13);
-        }
-
+    public static synchronized void initKit() {
+        long start = System.nanoTime();
         // read the Default Kits and their associated types
         Properties kitsForTypes = JarServiceProvider.readProperties("jsyntaxpane.kitsfortypes");
         for (String type : kitsForTypes.stringPropertyNames()) {
             String classname = kitsForTypes.getProperty(type);
             registerContentType(type, classname);
         }
-
+        CONFIG = null;
         initialized = true;
+        logTime("Registered content types", start);
+    }
+
+    /**
+     * Return the font to use for EditorPanes, the first of Courier New,
+     * Courier or Monospaced that is installed.  Only these families are
+     * looked up, instead of all the installed fonts.
+     * @return the default font
+     */
+    public static synchronized Font getDefaultFont() {
+        if (DEFAULT_FONT == null) {
+            long start = System.nanoTime();
+            DEFAULT_FONT = findFont("Courier New", 12);
+            if (DEFAULT_FONT == null) {
+                DEFAULT_FONT = findFont("Courier", 12);
+            }
+            if (DEFAULT_FONT == null) {
+                // a logical font, always available
+                DEFAULT_FONT = new Font("Monospaced", Font.PLAIN, 13);
+            }
+            logTime("Found default font " + DEFAULT_FONT.getFamily(), start);
+        }
+        return DEFAULT_FONT;
+    }
+
+    /**
+     * @return a plain font of the family, or null if it is not installed
+     */
+    private static Font findFont(String family, int size) {
+        Font font = new Font(family, Font.PLAIN, size);
+        // a font of a family that is not installed falls back to Dialog
+        if (font.getFamily(Locale.ENGLISH).equalsIgnoreCase(family)) {
+            return font;
+        }
+        return null;
+    }
+
+    /**
+     * Log how long something done at startup took, for finding what makes
+     * startup slow.
+     */
+    private static void logTime(String what, long start) {
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "{0} in {1} ms", new Object[]{what,
+                        (System.nanoTime() - start) / 1000000});
+        }
     }
 
     /**
@@ -266,10 +421,15 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
      * returns the current config
      * @return
      */
-    public static Configuration getConfig() {
+    public static synchronized Configuration getConfig() {
         if (!initialized) {
             initKit();
         }
+        if (CONFIG == null) {
+            long start = System.nanoTime();
+            CONFIG = new Configuration(JarServiceProvider.readProperties("jsyntaxpane.config"));
+            logTime("Read configuration", start);
+        }
         return CONFIG;
     }
 
@@ -279,7 +439,64 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
      * @param config
      */
     public static void setConfig(Properties config) {
-        DefaultSyntaxKit.CONFIG.putAll(config);
+        getConfig().putAll(config);
+        configureDocuments();
+    }
+
+    /**
+     * Set the parse settings of all the documents created by the kits from
+     * the configuration again.  The tokens do not depend on the
+     * configuration, so the documents are not lexed again: only turning
+     * lazy parsing off lexes the rest of a document, in background mode on
+     * the ParseScheduler.  This runs on the EDT, later if called on another
+     * thread.
+     */
+    public static void configureDocuments() {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    configureDocuments();
+                }
+            });
+            return;
+        }
+        Map<SyntaxDocument, String> docs;
+        synchronized (DOCUMENTS) {
+            docs = new HashMap<SyntaxDocument, String>(DOCUMENTS);
+        }
+        Configuration config = getConfig();
+        for (Map.Entry<SyntaxDocument, String> e : docs.entrySet()) {
+            configure(e.getKey(), e.getValue(), config);
+        }
+    }
+
+    /**
+     * Lex all the documents created by the kits again, as after a change of
+     * their Lexers.  The documents in background mode are only scheduled
+     * with the ParseScheduler, which parses the ones of shown editors first.
+     * The others are lexed on the EDT, one after the other.  This runs on
+     * the EDT, later if called on another thread.
+     */
+    public static void reparseDocuments() {
+        if (!SwingUtilities.isEventDispatchThread()) {
+            SwingUtilities.invokeLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    reparseDocuments();
+                }
+            });
+            return;
+        }
+        SyntaxDocument[] docs;
+        synchronized (DOCUMENTS) {
+            docs = DOCUMENTS.keySet().toArray(new SyntaxDocument[DOCUMENTS.size()]);
+        }
+        for (SyntaxDocument doc : docs) {
+            doc.reparse();
+        }
     }
 
     /**
@@ -289,10 +506,7 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
      * @param value
      */
     public static void setProperty(String key, String value) {
-        if (!initialized) {
-            initKit();
-        }
-        CONFIG.put(key, value);
+        getConfig().put(key, value);
     }
 
     /**
@@ -303,9 +517,6 @@ public class DefaultSyntaxKit extends DefaultEditorKit implements ViewFactory {
      * @return value for given key
      */
     public static String getProperty(String key) {
-        if (!initialized) {
-            initKit();
-        }
-        return CONFIG.getProperty(key);
+        return getConfig().getProperty(key);
     }
 }
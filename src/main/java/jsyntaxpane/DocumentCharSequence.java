@@ -0,0 +1,130 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+/**
+ * A CharSequence of the text of a Document, to match Patterns on without a
+ * copy of the text.  The text is read with partial return Segments, which
+ * for a GapContent are the content array itself on each side of the gap.
+ * The last two chunks read are kept, so matchers that look back across a
+ * chunk boundary do not read the text again.
+ *
+ * Like a Segment, the sequence must only be used while the document does
+ * not change, normally on the EDT or with the read lock.
+ *
+ * @author Ayman Al-Sairafi
+ */
+public class DocumentCharSequence implements CharSequence {
+
+    /**
+     * When a chunk is read, it starts this many chars before the position
+     * asked for, if it can, for matchers that go back.
+     */
+    private static final int LOOK_BACK = 64;
+    private final Document doc;
+    private final int start;
+    private final int end;
+    // the chunk read last starts at segStart in the document, the one before
+    // it at prevStart
+    private Segment seg = new Segment();
+    private int segStart;
+    private Segment prev = new Segment();
+    private int prevStart;
+
+    /**
+     * Create a sequence of the text of doc between start and end.
+     * @param doc
+     * @param start
+     * @param end
+     */
+    public DocumentCharSequence(Document doc, int start, int end) {
+        this.doc = doc;
+        this.start = start;
+        this.end = end;
+        seg.setPartialReturn(true);
+        prev.setPartialReturn(true);
+    }
+
+    @Override
+    public int length() {
+        return end - start;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= end - start) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Length: " + (end - start));
+        }
+        int pos = start + index;
+        int i = pos - segStart;
+        if (i >= 0 && i < seg.count) {
+            return seg.array[seg.offset + i];
+        }
+        i = pos - prevStart;
+        if (i >= 0 && i < prev.count) {
+            return prev.array[prev.offset + i];
+        }
+        read(pos);
+        return seg.array[seg.offset + pos - segStart];
+    }
+
+    /**
+     * Read the chunk of text that has pos into seg.  The chunk in seg
+     * becomes the previous one.
+     */
+    private void read(int pos) {
+        Segment s = prev;
+        prev = seg;
+        prevStart = segStart;
+        seg = s;
+        try {
+            segStart = Math.max(start, pos - LOOK_BACK);
+            doc.getText(segStart, end - segStart, seg);
+            if (pos - segStart >= seg.count) {
+                // the chunk ends before pos, like at the gap of a GapContent
+                segStart = pos;
+                doc.getText(segStart, end - segStart, seg);
+            }
+        } catch (BadLocationException ex) {
+            LOG.log(Level.SEVERE, "Requested offset: " + ex.offsetRequested(), ex);
+            throw new IndexOutOfBoundsException(ex.getMessage());
+        }
+    }
+
+    @Override
+    public CharSequence subSequence(int from, int to) {
+        if (from < 0 || to > end - start || from > to) {
+            throw new IndexOutOfBoundsException("From: " + from + ", To: " + to);
+        }
+        return new DocumentCharSequence(doc, start + from, start + to);
+    }
+
+    @Override
+    public String toString() {
+        try {
+            return doc.getText(start, end - start);
+        } catch (BadLocationException ex) {
+            LOG.log(Level.SEVERE, "Requested offset: " + ex.offsetRequested(), ex);
+            throw new IndexOutOfBoundsException(ex.getMessage());
+        }
+    }
+
+    private static final Logger LOG = Logger.getLogger(DocumentCharSequence.class.getName());
+}
@@ -19,6 +19,10 @@ import java.io.Reader;
  * Lexers must implement these methods.  These are used in the Tokenizer 
  * 
  * A Lexer should be tied to one document.
+ * Lexers that also implement RestartableLexer, like all the ones extending
+ * DefaultLexer, can be restarted in the middle of a document, so it can be
+ * parsed incrementally, lazily or in parallel.  Other Lexers always lex the
+ * whole document.
  * 
  * @author Ayman Al-Sairafi
  */
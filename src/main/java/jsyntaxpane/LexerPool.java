@@ -0,0 +1,122 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane;
+
+import java.io.StringReader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Idle Lexers of one class, so they can be used again instead of being
+ * created for each use.  A Lexer borrowed from the pool is only used by
+ * the thread that borrowed it, until it is released.  The pool is safe to
+ * use from many threads at once.
+ *
+ * The kits and the Tokenizer share the pool of each Lexer class, from
+ * forClass.
+ *
+ * @author Ayman Al-Sairafi
+ */
+public class LexerPool {
+
+    private static final ConcurrentHashMap<Class<? extends Lexer>, LexerPool> POOLS =
+            new ConcurrentHashMap<Class<? extends Lexer>, LexerPool>();
+    private final Class<? extends Lexer> lexerClass;
+    private final ConcurrentLinkedQueue<Lexer> idle = new ConcurrentLinkedQueue<Lexer>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private volatile int maxIdle = Integer.MAX_VALUE;
+
+    /**
+     * Create a pool of Lexers of the given class, which must have a public
+     * no-args constructor.
+     * @param lexerClass
+     */
+    public LexerPool(Class<? extends Lexer> lexerClass) {
+        this.lexerClass = lexerClass;
+    }
+
+    /**
+     * Return the shared pool of the given Lexer class, creating it if needed.
+     * @param lexerClass
+     * @return the pool
+     */
+    public static LexerPool forClass(Class<? extends Lexer> lexerClass) {
+        LexerPool pool = POOLS.get(lexerClass);
+        if (pool == null) {
+            pool = new LexerPool(lexerClass);
+            LexerPool other = POOLS.putIfAbsent(lexerClass, pool);
+            if (other != null) {
+                pool = other;
+            }
+        }
+        return pool;
+    }
+
+    public Class<? extends Lexer> getLexerClass() {
+        return lexerClass;
+    }
+
+    /**
+     * Set the most idle Lexers kept.  Lexers released when there are that
+     * many are dropped.
+     * @param maxIdle the limit, or 0 to keep any number
+     */
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle > 0 ? maxIdle : Integer.MAX_VALUE;
+    }
+
+    public int getMaxIdle() {
+        return maxIdle == Integer.MAX_VALUE ? 0 : maxIdle;
+    }
+
+    /**
+     * Take an idle Lexer from the pool, or create a new one if there is none.
+     * @return the Lexer, which must be released when done
+     * @throws IllegalStateException if the Lexer cannot be created
+     */
+    public Lexer borrow() {
+        Lexer lexer = idle.poll();
+        if (lexer != null) {
+            idleCount.decrementAndGet();
+            return lexer;
+        }
+        try {
+            return lexerClass.newInstance();
+        } catch (InstantiationException ex) {
+            throw new IllegalStateException("Cannot create Lexer: " + lexerClass.getName(), ex);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException("Cannot create Lexer: " + lexerClass.getName(), ex);
+        }
+    }
+
+    /**
+     * Give a Lexer taken with borrow back to the pool.  It must not be used
+     * after this.  A Lexer of this class that was created otherwise can be
+     * added too.
+     * @param lexer
+     */
+    public void release(Lexer lexer) {
+        // do not keep the text it was reading
+        lexer.yyreset(new StringReader(""));
+        if (lexer instanceof RestartableLexer) {
+            ((RestartableLexer) lexer).setTokenSink(null, 0);
+        }
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offer(lexer);
+    }
+}
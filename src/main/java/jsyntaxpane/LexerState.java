@@ -0,0 +1,86 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane;
+
+/**
+ * An immutable snapshot of a Lexer taken between two tokens.  It holds the
+ * lexical state and the start and length of any Token the lexer is still
+ * building (like a multi-line comment or String).  The Token start is kept
+ * relative to the position the snapshot was taken at, so the snapshot can be
+ * restored on a Lexer that was reset to start reading at that position.
+ *
+ * @author Ayman Al-Sairafi
+ */
+public final class LexerState {
+
+    /**
+     * The state of a Lexer in YYINITIAL, with no pending Token.
+     */
+    public static final LexerState INITIAL = new LexerState(0, 0, 0);
+    private final int state;
+    private final int tokenStart;
+    private final int tokenLength;
+
+    /**
+     * Create a new snapshot
+     * @param state the lexical state (as in yystate())
+     * @param tokenStart start of the pending token, relative to the snapshot
+     * position.  This is zero or negative.
+     * @param tokenLength length of the pending token so far
+     */
+    public LexerState(int state, int tokenStart, int tokenLength) {
+        this.state = state;
+        this.tokenStart = tokenStart;
+        this.tokenLength = tokenLength;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public int getTokenStart() {
+        return tokenStart;
+    }
+
+    public int getTokenLength() {
+        return tokenLength;
+    }
+
+    /**
+     * @return true if this is the initial state of the Lexer
+     */
+    public boolean isInitial() {
+        return state == 0;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof LexerState) {
+            LexerState s = (LexerState) obj;
+            return state == s.state && tokenStart == s.tokenStart &&
+                    tokenLength == s.tokenLength;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        return state * 31 + tokenStart * 17 + tokenLength;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LexerState(%d, %d, %d)", state, tokenStart, tokenLength);
+    }
+}
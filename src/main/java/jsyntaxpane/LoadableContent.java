@@ -0,0 +1,58 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.GapContent;
+
+/**
+ * The GapContent of SyntaxDocuments.  It can also insert chars from an
+ * array, so text loaded with SyntaxDocument.load is copied straight into
+ * the content, without making a String of each chunk.
+ *
+ * GapContent grows its array by a fixed amount once it is large, so
+ * inserting a large text in chunks would copy the array again for each of
+ * them.  When loading, the gap is made as large as the expected text, and
+ * doubled if that is not enough.
+ *
+ * @author Ayman Al-Sairafi
+ */
+final class LoadableContent extends GapContent {
+
+    /**
+     * Make room for count chars at where, so inserting them does not grow
+     * the array again.
+     */
+    void reserve(int where, int count) {
+        shiftGap(where);
+        int gap = getGapEnd() - getGapStart();
+        if (gap < count) {
+            shiftEnd(((char[]) getArray()).length - gap + count);
+        }
+    }
+
+    /**
+     * Insert count chars from the start of the array at where.  Unlike
+     * insertString, no UndoableEdit is made.
+     */
+    void insert(int where, char[] chars, int count) throws BadLocationException {
+        if (where > length() || where < 0) {
+            throw new BadLocationException("Invalid insert", length());
+        }
+        if (getGapStart() != where || getGapEnd() - getGapStart() < count) {
+            reserve(where, Math.max(count, length()));
+        }
+        replace(where, 0, chars, count);
+    }
+}
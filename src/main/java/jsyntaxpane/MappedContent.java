@@ -0,0 +1,545 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * A document Content for large files.  The file is mapped read-only, and
+ * the text is kept as a piece table: a list of pieces, each a range of the
+ * file or of a buffer inserted text is appended to.  Opening a file takes
+ * no memory for its text, and edits only add pieces and text to the buffer,
+ * so the memory used grows with the edits, not with the file.  Undoing and
+ * redoing edits moves pieces, and copies no text.
+ *
+ * Bytes of the file are used as chars where the charset decodes each of
+ * them to one char: all bytes for single byte charsets, and ASCII bytes for
+ * UTF-8.  Other bytes are decoded into the buffer when the file is opened,
+ * and so are line ends, which become \n like DefaultEditorKit.read does.
+ * Files in other charsets are decoded into the buffer completely.
+ *
+ * Like the text, the pieces are kept in arrays with a gap at the last edit,
+ * and the starts of the pieces after the gap are stored relative to a tail
+ * shift.
+ *
+ * The file must not be changed while the content is used.  Use it with
+ * the SyntaxDocument(Lexer, Content) constructor, or with
+ * DefaultSyntaxKit.createDocument(File, Charset).
+ *
+ * @author Ayman Al-Sairafi
+ */
+public class MappedContent implements AbstractDocument.Content {
+
+    // marks bytes that are not used as chars directly
+    private static final char NOT_DIRECT = '\uFFFF';
+    // the most chars copied from the file for a partial return
+    private static final int PARTIAL_CHARS = 8192;
+    private final ByteBuffer file;
+    // the char of each byte of the file, or NOT_DIRECT
+    private final char[] byteChars;
+    private String lineSeparator = "\n";
+    private char[] added = new char[1024];
+    private int addedLength = 0;
+    // the source of each piece: the offset of its first byte in the file,
+    // or the complement (~) of the offset of its first char in added
+    private int[] sources = new int[16];
+    private int[] lengths = new int[16];
+    private int[] starts = new int[16];
+    // the gap is from gapStart to gapEnd (exclusive) in the arrays
+    private int gapStart = 0;
+    private int gapEnd = 16;
+    // added to the stored start of each piece after the gap
+    private int tailShift = 0;
+    private int length = 0;
+    private final MarkList marks = new MarkList();
+
+    /**
+     * Map the given file, with the text decoded using charset.
+     * @param file
+     * @param charset
+     * @throws IOException if the file cannot be read, or is 2GB or more
+     */
+    public MappedContent(File file, Charset charset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() >= Integer.MAX_VALUE) {
+                throw new IOException("File is too large: " + file);
+            }
+            // the mapping stays valid after the file is closed
+            this.file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        byteChars = getByteChars(charset);
+        addPieces(charset);
+    }
+
+    /**
+     * @return the line separator used the most in the file, one of "\n",
+     * "\r\n" or "\r"
+     */
+    public String getLineSeparator() {
+        return lineSeparator;
+    }
+
+    /**
+     * Find the chars each byte decodes to by itself.
+     */
+    private static char[] getByteChars(Charset charset) {
+        char[] chars = new char[256];
+        Arrays.fill(chars, NOT_DIRECT);
+        if (charset.name().equals("UTF-8")) {
+            for (int b = 0; b < 0x80; b++) {
+                chars[b] = (char) b;
+            }
+        } else if (charset.canEncode() &&
+                charset.newEncoder().maxBytesPerChar() == 1.0f) {
+            CharsetDecoder decoder = charset.newDecoder();
+            for (int b = 0; b < 256; b++) {
+                try {
+                    CharBuffer c = decoder.reset().decode(
+                            ByteBuffer.wrap(new byte[]{(byte) b}));
+                    if (c.remaining() == 1) {
+                        chars[b] = c.get(0);
+                    }
+                } catch (CharacterCodingException ex) {
+                    // the byte is decoded with the others
+                }
+            }
+        }
+        // line ends are converted
+        for (int b = 0; b < 256; b++) {
+            if (chars[b] == '\r') {
+                chars[b] = NOT_DIRECT;
+            }
+        }
+        return chars;
+    }
+
+    /**
+     * Add the pieces of the text of the file: the runs of bytes used as
+     * chars, and the decoded text of the bytes between them.  The content
+     * also ends with a \n, like all Contents do.
+     */
+    private void addPieces(Charset charset) throws CharacterCodingException {
+        CharsetDecoder decoder = charset.newDecoder().
+                onMalformedInput(CodingErrorAction.REPLACE).
+                onUnmappableCharacter(CodingErrorAction.REPLACE);
+        int size = file.limit();
+        int crlfs = 0;
+        int crs = 0;
+        int pos = 0;
+        while (pos < size) {
+            int start = pos;
+            while (pos < size && byteChars[file.get(pos) & 0xff] != NOT_DIRECT) {
+                pos++;
+            }
+            if (pos > start) {
+                addPiece(start, pos - start);
+            }
+            start = pos;
+            while (pos < size && byteChars[file.get(pos) & 0xff] == NOT_DIRECT) {
+                pos++;
+            }
+            if (pos == start) {
+                continue;
+            }
+            ByteBuffer bytes = file.duplicate();
+            bytes.position(start);
+            bytes.limit(pos);
+            CharBuffer text = decoder.reset().decode(bytes);
+            boolean lfNext = pos < size && byteChars[file.get(pos) & 0xff] == '\n';
+            int first = addedLength;
+            ensureAdded(text.remaining());
+            for (int i = 0; i < text.limit(); i++) {
+                char c = text.get(i);
+                if (c == '\r') {
+                    if ((i + 1 < text.limit()) ? text.get(i + 1) == '\n' : lfNext) {
+                        crlfs++;
+                        continue;
+                    }
+                    crs++;
+                    c = '\n';
+                }
+                added[addedLength++] = c;
+            }
+            if (addedLength > first) {
+                addPiece(~first, addedLength - first);
+            }
+        }
+        if (crlfs > 0 || crs > 0) {
+            lineSeparator = (crlfs >= crs) ? "\r\n" : "\r";
+        }
+        ensureAdded(1);
+        added[addedLength] = '\n';
+        addPiece(~addedLength, 1);
+        addedLength++;
+    }
+
+    private void ensureAdded(int count) {
+        if (addedLength + count > added.length) {
+            char[] grown = new char[Math.max(addedLength + count, added.length * 2)];
+            System.arraycopy(added, 0, grown, 0, addedLength);
+            added = grown;
+        }
+    }
+
+    /**
+     * Add a piece at the end, when the pieces are created.
+     */
+    private void addPiece(int source, int count) {
+        moveGap(pieceCount());
+        putPiece(source, count, length);
+        length += count;
+    }
+
+    private int pieceCount() {
+        return sources.length - (gapEnd - gapStart);
+    }
+
+    private int index(int ndx) {
+        return (ndx < gapStart) ? ndx : ndx + gapEnd - gapStart;
+    }
+
+    private int getStart(int ndx) {
+        return (ndx < gapStart) ? starts[ndx] : starts[ndx + gapEnd - gapStart] + tailShift;
+    }
+
+    /**
+     * @return the source of the part of a piece from offset on
+     */
+    private static int skip(int source, int offset) {
+        return (source >= 0) ? source + offset : source - offset;
+    }
+
+    /**
+     * @return the index of the piece with the char at offset, which must be
+     * less than the length
+     */
+    private int find(int offset) {
+        int low = 0;
+        int high = pieceCount() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (getStart(mid) <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Move the gap so it is before the piece at ndx
+     */
+    private void moveGap(int ndx) {
+        if (ndx < gapStart) {
+            int count = gapStart - ndx;
+            move(ndx, gapEnd - count, count);
+            for (int i = gapEnd - count; i < gapEnd; i++) {
+                starts[i] -= tailShift;
+            }
+            gapStart = ndx;
+            gapEnd -= count;
+        } else if (ndx > gapStart) {
+            int count = ndx - gapStart;
+            move(gapEnd, gapStart, count);
+            for (int i = gapStart; i < ndx; i++) {
+                starts[i] += tailShift;
+            }
+            gapStart = ndx;
+            gapEnd += count;
+        }
+    }
+
+    private void move(int from, int to, int count) {
+        System.arraycopy(sources, from, sources, to, count);
+        System.arraycopy(lengths, from, lengths, to, count);
+        System.arraycopy(starts, from, starts, to, count);
+    }
+
+    /**
+     * Put a piece at the gap.
+     */
+    private void putPiece(int source, int count, int start) {
+        if (gapStart == gapEnd) {
+            int tail = sources.length - gapEnd;
+            int capacity = sources.length * 2;
+            int[] s = new int[capacity];
+            int[] l = new int[capacity];
+            int[] st = new int[capacity];
+            System.arraycopy(sources, 0, s, 0, gapStart);
+            System.arraycopy(lengths, 0, l, 0, gapStart);
+            System.arraycopy(starts, 0, st, 0, gapStart);
+            System.arraycopy(sources, gapEnd, s, capacity - tail, tail);
+            System.arraycopy(lengths, gapEnd, l, capacity - tail, tail);
+            System.arraycopy(starts, gapEnd, st, capacity - tail, tail);
+            sources = s;
+            lengths = l;
+            starts = st;
+            gapEnd = capacity - tail;
+        }
+        sources[gapStart] = source;
+        lengths[gapStart] = count;
+        starts[gapStart] = start;
+        gapStart++;
+    }
+
+    /**
+     * Split the piece at offset, if it does not start there.
+     * @return the index of the piece starting at offset, or the number of
+     * pieces if offset is the length
+     */
+    private int split(int offset) {
+        if (offset == length) {
+            return pieceCount();
+        }
+        int ndx = find(offset);
+        int start = getStart(ndx);
+        if (start == offset) {
+            return ndx;
+        }
+        moveGap(ndx + 1);
+        int head = offset - start;
+        putPiece(skip(sources[ndx], head), lengths[ndx] - head, offset);
+        lengths[ndx] = head;
+        return ndx + 1;
+    }
+
+    /**
+     * Insert pieces with the given sources and lengths at offset.
+     */
+    private void insertPieces(int offset, int[] pieceSources, int[] pieceLengths,
+            int count) {
+        int ndx = split(offset);
+        moveGap(ndx);
+        int start = offset;
+        for (int i = 0; i < pieceSources.length; i++) {
+            // text typed after the last text typed extends its piece
+            int last = gapStart - 1;
+            if (last >= 0 && pieceSources[i] < 0 && sources[last] < 0 &&
+                    skip(sources[last], lengths[last]) == pieceSources[i]) {
+                lengths[last] += pieceLengths[i];
+            } else {
+                putPiece(pieceSources[i], pieceLengths[i], start);
+            }
+            start += pieceLengths[i];
+        }
+        tailShift += count;
+        length += count;
+    }
+
+    /**
+     * Remove the text from offset to offset + count.
+     * @return the removed pieces, sources first, then lengths
+     */
+    private int[][] removePieces(int offset, int count) {
+        int first = split(offset);
+        int end = split(offset + count);
+        int[][] removed = new int[2][end - first];
+        for (int i = first; i < end; i++) {
+            removed[0][i - first] = sources[index(i)];
+            removed[1][i - first] = lengths[index(i)];
+        }
+        moveGap(first);
+        gapEnd += end - first;
+        tailShift -= count;
+        length -= count;
+        return removed;
+    }
+
+    @Override
+    public Position createPosition(int offset) throws BadLocationException {
+        if (offset < 0 || offset > length) {
+            throw new BadLocationException("Invalid offset", offset);
+        }
+        return marks.create(offset);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public UndoableEdit insertString(int where, String str)
+            throws BadLocationException {
+        if (where < 0 || where > length) {
+            throw new BadLocationException("Invalid insert", where);
+        }
+        int count = str.length();
+        ensureAdded(count);
+        str.getChars(0, count, added, addedLength);
+        int source = ~addedLength;
+        addedLength += count;
+        insertPieces(where, new int[]{source}, new int[]{count}, count);
+        marks.insert(where, count);
+        return new InsertUndo(where, source, count);
+    }
+
+    @Override
+    public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+        if (where < 0 || nitems < 0 || where + nitems >= length) {
+            throw new BadLocationException("Invalid remove", where + nitems);
+        }
+        int[][] removed = removePieces(where, nitems);
+        MarkList.Saved saved = marks.remove(where, nitems);
+        return new RemoveUndo(where, nitems, removed, saved);
+    }
+
+    @Override
+    public String getString(int where, int len) throws BadLocationException {
+        Segment text = new Segment();
+        getChars(where, len, text);
+        return new String(text.array, text.offset, text.count);
+    }
+
+    /**
+     * Get the chars from where to where + len.  If they are all inserted
+     * text, the segment gets the buffer they are in, otherwise a copy.  For
+     * a partial return, only the chars of the first piece are returned.
+     */
+    @Override
+    public void getChars(int where, int len, Segment txt)
+            throws BadLocationException {
+        if (where < 0 || len < 0 || where + len > length) {
+            throw new BadLocationException("Invalid location", where + len);
+        }
+        if (len == 0) {
+            txt.array = added;
+            txt.offset = 0;
+            txt.count = 0;
+            return;
+        }
+        int ndx = index(find(where));
+        int skipped = where - (ndx < gapStart ? starts[ndx] : starts[ndx] + tailShift);
+        int inPiece = lengths[ndx] - skipped;
+        if (txt.isPartialReturn()) {
+            len = Math.min(len, sources[ndx] < 0 ? inPiece : Math.min(inPiece, PARTIAL_CHARS));
+        }
+        if (sources[ndx] < 0 && len <= inPiece) {
+            txt.array = added;
+            txt.offset = ~skip(sources[ndx], skipped);
+            txt.count = len;
+            return;
+        }
+        char[] chars = new char[len];
+        copyChars(where, chars, len);
+        txt.array = chars;
+        txt.offset = 0;
+        txt.count = len;
+    }
+
+    private void copyChars(int where, char[] chars, int len) {
+        int ndx = find(where);
+        int skipped = where - getStart(ndx);
+        int copied = 0;
+        while (copied < len) {
+            int p = index(ndx);
+            int count = Math.min(lengths[p] - skipped, len - copied);
+            int source = skip(sources[p], skipped);
+            if (source < 0) {
+                System.arraycopy(added, ~source, chars, copied, count);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    chars[copied + i] = byteChars[file.get(source + i) & 0xff];
+                }
+            }
+            copied += count;
+            skipped = 0;
+            ndx++;
+        }
+    }
+
+    class InsertUndo extends AbstractUndoableEdit {
+
+        private final int where;
+        private final int source;
+        private final int count;
+        private MarkList.Saved saved;
+
+        InsertUndo(int where, int source, int count) {
+            this.where = where;
+            this.source = source;
+            this.count = count;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            removePieces(where, count);
+            saved = marks.remove(where, count);
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            insertPieces(where, new int[]{source}, new int[]{count}, count);
+            marks.insert(where, count);
+            marks.restore(saved, where, count);
+            saved = null;
+        }
+    }
+
+    class RemoveUndo extends AbstractUndoableEdit {
+
+        private final int where;
+        private final int count;
+        private final int[][] pieces;
+        private MarkList.Saved saved;
+
+        RemoveUndo(int where, int count, int[][] pieces, MarkList.Saved saved) {
+            this.where = where;
+            this.count = count;
+            this.pieces = pieces;
+            this.saved = saved;
+        }
+
+        @Override
+        public void undo() throws CannotUndoException {
+            super.undo();
+            insertPieces(where, pieces[0], pieces[1], count);
+            marks.insert(where, count);
+            marks.restore(saved, where, count);
+            saved = null;
+        }
+
+        @Override
+        public void redo() throws CannotRedoException {
+            super.redo();
+            removePieces(where, count);
+            saved = marks.remove(where, count);
+        }
+    }
+}
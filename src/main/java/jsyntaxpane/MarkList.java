@@ -0,0 +1,262 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Comparator;
+import javax.swing.text.Position;
+
+/**
+ * The Positions of a MappedContent.  They move like those of Swing's
+ * GapContent: an insert moves the positions at or after it, except those at
+ * 0, and a remove moves the positions in the removed text to its start.
+ *
+ * Like in GapContent, the marks are kept sorted in an array with a gap at
+ * the last change, and the offsets of the marks after the gap are stored
+ * relative to a tail shift, so an edit moves all of them by changing the
+ * shift.  Marks are dropped some time after their Positions are no longer
+ * used.
+ *
+ * @author Ayman Al-Sairafi
+ */
+final class MarkList {
+
+    private static final Comparator<Mark> BY_OFFSET = new Comparator<Mark>() {
+
+        @Override
+        public int compare(Mark a, Mark b) {
+            return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+        }
+    };
+    private Mark[] marks = new Mark[16];
+    // the gap is from gapStart to gapEnd (exclusive) in the array
+    private int gapStart = 0;
+    private int gapEnd = 16;
+    // added to the stored offset of each mark after the gap
+    private int tailShift = 0;
+    private final ReferenceQueue<Handle> unusedQueue = new ReferenceQueue<Handle>();
+    private int unused = 0;
+
+    /**
+     * A mark.  It is only referenced by the list and its Handle, so the
+     * list knows when it is no longer used.
+     */
+    final class Mark extends WeakReference<Handle> {
+
+        int offset;
+        boolean afterGap;
+
+        Mark(Handle handle, int offset) {
+            super(handle, unusedQueue);
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * The Position handed out for a mark.
+     */
+    final class Handle implements Position {
+
+        final Mark mark;
+
+        Handle(int offset) {
+            mark = new Mark(this, offset);
+        }
+
+        @Override
+        public int getOffset() {
+            synchronized (MarkList.this) {
+                return mark.afterGap ? mark.offset + tailShift : mark.offset;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return Integer.toString(getOffset());
+        }
+    }
+
+    /**
+     * The offsets marks had before a change, so it can be undone.
+     */
+    static final class Saved {
+
+        final Mark[] marks;
+        final int[] offsets;
+
+        Saved(Mark[] marks, int[] offsets) {
+            this.marks = marks;
+            this.offsets = offsets;
+        }
+    }
+
+    private int size() {
+        return marks.length - (gapEnd - gapStart);
+    }
+
+    private int index(int ndx) {
+        return (ndx < gapStart) ? ndx : ndx + gapEnd - gapStart;
+    }
+
+    private int getOffset(int ndx) {
+        return (ndx < gapStart) ? marks[ndx].offset : marks[ndx + gapEnd - gapStart].offset + tailShift;
+    }
+
+    /**
+     * @return the index of the first mark at or after offset
+     */
+    private int find(int offset) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getOffset(mid) < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Move the gap so it is before the mark at ndx
+     */
+    private void moveGap(int ndx) {
+        // the moved marks are cleared from where they were, so the gap
+        // does not keep unused marks
+        if (ndx < gapStart) {
+            int count = gapStart - ndx;
+            System.arraycopy(marks, ndx, marks, gapEnd - count, count);
+            for (int i = gapEnd - count; i < gapEnd; i++) {
+                marks[i].offset -= tailShift;
+                marks[i].afterGap = true;
+            }
+            Arrays.fill(marks, ndx, Math.min(gapStart, gapEnd - count), null);
+            gapStart = ndx;
+            gapEnd -= count;
+        } else if (ndx > gapStart) {
+            int count = ndx - gapStart;
+            System.arraycopy(marks, gapEnd, marks, gapStart, count);
+            for (int i = gapStart; i < ndx; i++) {
+                marks[i].offset += tailShift;
+                marks[i].afterGap = false;
+            }
+            Arrays.fill(marks, Math.max(gapEnd, ndx), gapEnd + count, null);
+            gapStart = ndx;
+            gapEnd += count;
+        }
+    }
+
+    /**
+     * Create a Position at offset.  Like in GapContent, Positions at the
+     * same offset share their mark.
+     */
+    synchronized Position create(int offset) {
+        dropUnused();
+        int ndx = find(offset);
+        if (ndx < size() && getOffset(ndx) == offset) {
+            Handle shared = marks[index(ndx)].get();
+            if (shared != null) {
+                return shared;
+            }
+        }
+        moveGap(ndx);
+        if (gapStart == gapEnd) {
+            int tail = marks.length - gapEnd;
+            Mark[] grown = new Mark[marks.length * 2];
+            System.arraycopy(marks, 0, grown, 0, gapStart);
+            System.arraycopy(marks, gapEnd, grown, grown.length - tail, tail);
+            gapEnd = grown.length - tail;
+            marks = grown;
+        }
+        Handle handle = new Handle(offset);
+        marks[gapStart++] = handle.mark;
+        return handle;
+    }
+
+    /**
+     * Move the marks for length chars inserted at offset.
+     */
+    synchronized void insert(int offset, int length) {
+        // the marks at 0 stay at the start
+        moveGap(find(Math.max(offset, 1)));
+        tailShift += length;
+    }
+
+    /**
+     * Move the marks for length chars removed at offset.
+     * @return the offsets the moved marks had before
+     */
+    synchronized Saved remove(int offset, int length) {
+        int first = find(offset);
+        int end = find(offset + length + 1);
+        moveGap(end);
+        Saved saved = save(first, end);
+        for (int i = first; i < end; i++) {
+            marks[i].offset = offset;
+        }
+        tailShift -= length;
+        return saved;
+    }
+
+    private Saved save(int first, int end) {
+        Mark[] saved = new Mark[end - first];
+        int[] offsets = new int[end - first];
+        System.arraycopy(marks, first, saved, 0, saved.length);
+        for (int i = 0; i < saved.length; i++) {
+            offsets[i] = saved[i].offset;
+        }
+        return new Saved(saved, offsets);
+    }
+
+    /**
+     * Put back the offsets of saved marks, which are now all from offset to
+     * offset + length, both included.
+     */
+    synchronized void restore(Saved saved, int offset, int length) {
+        int first = find(offset);
+        int end = find(offset + length + 1);
+        moveGap(end);
+        for (int i = 0; i < saved.marks.length; i++) {
+            saved.marks[i].offset = saved.offsets[i];
+        }
+        Arrays.sort(marks, first, end, BY_OFFSET);
+    }
+
+    /**
+     * Remove the marks whose Positions are no longer used, once there are
+     * enough of them to be worth a pass over the array.
+     */
+    private void dropUnused() {
+        while (unusedQueue.poll() != null) {
+            unused++;
+        }
+        if (unused < Math.max(16, size() / 8)) {
+            return;
+        }
+        moveGap(size());
+        int n = 0;
+        for (int i = 0; i < gapStart; i++) {
+            if (marks[i].get() != null) {
+                marks[n++] = marks[i];
+            }
+        }
+        Arrays.fill(marks, n, gapStart, null);
+        gapStart = n;
+        unused = 0;
+    }
+}
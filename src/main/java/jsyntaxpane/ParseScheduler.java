@@ -0,0 +1,374 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane;
+
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.swing.JEditorPane;
+import javax.swing.text.Document;
+
+/**
+ * Runs the background parses of SyntaxDocuments on a few worker threads.
+ * The document in the focused editor is parsed first, then the ones in
+ * other showing editors, most recently used first, then the documents that
+ * are in no editor.  Documents whose editors are not showing, like the ones
+ * in hidden tabs, are not parsed until they are shown.
+ *
+ * A document is never parsed by two threads at once.  When it changes
+ * while waiting, only its last parse is run.
+ *
+ * The editors are tracked with install and deinstall, which the kits call
+ * when their documents are parsed in the background.
+ * An editor that is not tracked does not affect the order.
+ *
+ * @author Ayman Al-Sairafi
+ */
+public class ParseScheduler {
+
+    private static ParseScheduler defaultScheduler;
+    private final ThreadPoolExecutor executor;
+    /**
+     * The documents with a parse waiting until they are shown.
+     */
+    private final Set<SyntaxDocument> deferred =
+            Collections.newSetFromMap(new WeakHashMap<SyntaxDocument, Boolean>());
+    /**
+     * Counts uses of documents, so more recently used ones have larger values.
+     */
+    private long useCount = 0;
+    private long taskCount = 0;
+    private final EditorTracker tracker = new EditorTracker();
+
+    /**
+     * The scheduling state of a document, kept in the document.  It is only
+     * used while holding the lock of the scheduler.
+     */
+    static class Entry {
+
+        Runnable parse;
+        Task queued;
+        boolean running;
+        boolean hidden;
+        long used;
+        volatile long lexTime = -1;
+        volatile long lexTotal;
+    }
+
+    /**
+     * Create a scheduler with the given number of worker threads.  The
+     * threads are stopped when idle.
+     * @param threads
+     */
+    public ParseScheduler(int threads) {
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SyntaxDocument Parser");
+                t.setDaemon(true);
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Return the scheduler the documents use, with a thread for each
+     * processor but one, and at most 4.
+     * @return the default scheduler
+     */
+    public static synchronized ParseScheduler getDefault() {
+        if (defaultScheduler == null) {
+            int cpus = Runtime.getRuntime().availableProcessors();
+            defaultScheduler = new ParseScheduler(Math.max(1, Math.min(4, cpus - 1)));
+        }
+        return defaultScheduler;
+    }
+
+    /**
+     * Replace the scheduler documents use.  Parses already scheduled still
+     * run on the old one.
+     * @param scheduler
+     */
+    public static synchronized void setDefault(ParseScheduler scheduler) {
+        defaultScheduler = scheduler;
+    }
+
+    /**
+     * Run parse for doc on a worker thread, in place of any parse of doc
+     * that did not start yet.  If a parse of doc is running, this one is
+     * queued when that is done.
+     * @param doc
+     * @param parse
+     */
+    synchronized void schedule(SyntaxDocument doc, Runnable parse) {
+        entry(doc).parse = parse;
+        enqueue(doc);
+    }
+
+    /**
+     * Drop the parse of doc that did not start yet, if any.
+     * @param doc
+     */
+    synchronized void cancel(SyntaxDocument doc) {
+        Entry e = entry(doc);
+        e.parse = null;
+        dequeue(doc);
+        deferred.remove(doc);
+    }
+
+    private Entry entry(SyntaxDocument doc) {
+        if (doc.scheduling == null) {
+            doc.scheduling = new Entry();
+        }
+        return doc.scheduling;
+    }
+
+    private void enqueue(SyntaxDocument doc) {
+        Entry e = entry(doc);
+        if (e.running || e.queued != null || e.parse == null) {
+            return;
+        }
+        if (e.hidden) {
+            deferred.add(doc);
+            return;
+        }
+        e.queued = new Task(doc, e.used, taskCount++);
+        executor.execute(e.queued);
+    }
+
+    private void dequeue(SyntaxDocument doc) {
+        Entry e = entry(doc);
+        if (e.queued != null) {
+            executor.remove(e.queued);
+            e.queued = null;
+        }
+    }
+
+    /**
+     * Move doc ahead of the documents used before it.
+     * @param doc
+     */
+    public synchronized void used(SyntaxDocument doc) {
+        Entry e = entry(doc);
+        e.used = ++useCount;
+        e.hidden = false;
+        deferred.remove(doc);
+        // queue it again for its new priority
+        dequeue(doc);
+        enqueue(doc);
+    }
+
+    /**
+     * Tell whether doc is shown.  A shown document is also moved ahead of
+     * the documents used before it.  A document that is not shown is not
+     * parsed until it is.
+     * @param doc
+     * @param showing
+     */
+    public synchronized void setShowing(SyntaxDocument doc, boolean showing) {
+        if (showing) {
+            used(doc);
+            return;
+        }
+        Entry e = entry(doc);
+        e.hidden = true;
+        if (e.queued != null) {
+            dequeue(doc);
+            deferred.add(doc);
+        }
+    }
+
+    /**
+     * Make doc be parsed in its turn again, whether it is shown or not, as
+     * when it is removed from its editor.
+     * @param doc
+     */
+    public synchronized void release(SyntaxDocument doc) {
+        Entry e = entry(doc);
+        e.hidden = false;
+        e.used = 0;
+        deferred.remove(doc);
+        dequeue(doc);
+        enqueue(doc);
+    }
+
+    /**
+     * @return the number of documents waiting for a worker thread, not
+     * counting the deferred ones
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of documents waiting until they are shown
+     */
+    public synchronized int getDeferredCount() {
+        return deferred.size();
+    }
+
+    /**
+     * @param doc
+     * @return the time the last background parse of doc took, in
+     * nanoseconds, or -1 if it had none
+     */
+    public long getLexTime(SyntaxDocument doc) {
+        Entry e = doc.scheduling;
+        return e == null ? -1 : e.lexTime;
+    }
+
+    /**
+     * @param doc
+     * @return the time all the background parses of doc took, in
+     * nanoseconds
+     */
+    public long getTotalLexTime(SyntaxDocument doc) {
+        Entry e = doc.scheduling;
+        return e == null ? 0 : e.lexTotal;
+    }
+
+    /**
+     * Track the focus and showing of editor, and of the documents set on
+     * it, to order their parses.
+     * @param editor
+     */
+    public void install(JEditorPane editor) {
+        editor.addFocusListener(tracker);
+        editor.addHierarchyListener(tracker);
+        editor.addPropertyChangeListener("document", tracker);
+        if (editor.getDocument() instanceof SyntaxDocument) {
+            setShowing((SyntaxDocument) editor.getDocument(), editor.isShowing());
+        }
+    }
+
+    /**
+     * Stop tracking editor.
+     * @param editor
+     */
+    public void deinstall(JEditorPane editor) {
+        editor.removeFocusListener(tracker);
+        editor.removeHierarchyListener(tracker);
+        editor.removePropertyChangeListener("document", tracker);
+        if (editor.getDocument() instanceof SyntaxDocument) {
+            release((SyntaxDocument) editor.getDocument());
+        }
+    }
+
+    /**
+     * Runs the waiting parse of a document.  Tasks are ordered by the use
+     * of their document when queued, then first queued first.
+     */
+    private class Task implements Runnable, Comparable<Task> {
+
+        private final SyntaxDocument doc;
+        private final long used;
+        private final long order;
+
+        Task(SyntaxDocument doc, long used, long order) {
+            this.doc = doc;
+            this.used = used;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            if (used != o.used) {
+                return used > o.used ? -1 : 1;
+            }
+            return order < o.order ? -1 : (order == o.order ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            Runnable parse;
+            Entry e;
+            synchronized (ParseScheduler.this) {
+                e = entry(doc);
+                if (e.queued != this) {
+                    return;
+                }
+                e.queued = null;
+                parse = e.parse;
+                e.parse = null;
+                if (parse == null) {
+                    return;
+                }
+                e.running = true;
+            }
+            long start = System.nanoTime();
+            try {
+                parse.run();
+            } finally {
+                long time = System.nanoTime() - start;
+                synchronized (ParseScheduler.this) {
+                    e.lexTime = time;
+                    e.lexTotal += time;
+                    e.running = false;
+                    // the document changed while it was parsed
+                    enqueue(doc);
+                }
+            }
+        }
+    }
+
+    /**
+     * Follows the focus, showing and document of the tracked editors.
+     */
+    private class EditorTracker extends FocusAdapter
+            implements HierarchyListener, PropertyChangeListener {
+
+        @Override
+        public void focusGained(FocusEvent e) {
+            Document doc = ((JEditorPane) e.getComponent()).getDocument();
+            if (doc instanceof SyntaxDocument) {
+                used((SyntaxDocument) doc);
+            }
+        }
+
+        @Override
+        public void hierarchyChanged(HierarchyEvent e) {
+            if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0) {
+                JEditorPane editor = (JEditorPane) e.getComponent();
+                if (editor.getDocument() instanceof SyntaxDocument) {
+                    setShowing((SyntaxDocument) editor.getDocument(), editor.isShowing());
+                }
+            }
+        }
+
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            if (evt.getOldValue() instanceof SyntaxDocument) {
+                release((SyntaxDocument) evt.getOldValue());
+            }
+            if (evt.getNewValue() instanceof SyntaxDocument) {
+                JEditorPane editor = (JEditorPane) evt.getSource();
+                setShowing((SyntaxDocument) evt.getNewValue(), editor.isShowing());
+            }
+        }
+    }
+}
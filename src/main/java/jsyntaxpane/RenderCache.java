@@ -0,0 +1,445 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.Segment;
+import javax.swing.text.TabExpander;
+
+/**
+ * Keeps the text of a SyntaxView drawn in tiles, images of TILE_LINES lines
+ * each, so lines that were drawn before are copied instead of lexed, styled
+ * and drawn again when scrolling.
+ *
+ * The tiles are transparent, and only hold the text and the right margin,
+ * so the highlights the view paints behind the text still show.  They are
+ * dropped when the text or the tokens of their lines change, and all of them
+ * when the font, styles or width of the view change.  The least recently
+ * used tiles are dropped when they take more memory than the budget.
+ *
+ * While scrolling, the next tiles in the scroll direction are drawn ahead on
+ * renderer threads.  The text and runs of a tile, and the font, margin and
+ * tab stops of the view, are copied on the EDT for that, so the renderers
+ * do not use the view.  The tile is only used if nothing was dropped since.
+ *
+ * @author Ayman Al-Sairafi
+ */
+final class RenderCache {
+
+    static final int TILE_LINES = 16;
+    // tiles drawn ahead of the scroll direction
+    private static final int PREFETCH_TILES = 2;
+    private static final Logger log = Logger.getLogger(RenderCache.class.getName());
+    private final SyntaxView view;
+    private final long budget;
+    private final Object textAAHint;
+    private final Color marginColor;
+    // tiles by index, least recently used first
+    private final LinkedHashMap<Integer, Tile> tiles =
+            new LinkedHashMap<Integer, Tile>(16, 0.75f, true);
+    private long bytes = 0;
+    // tiles being drawn ahead
+    private final Set<Integer> pending = new HashSet<Integer>();
+    private final StyleRuns runs = new StyleRuns();
+    /**
+     * Counts the times tiles were dropped.  A tile drawn ahead is only used
+     * if this did not change since it was copied.
+     */
+    private int epoch = 0;
+    // what the tiles were drawn with
+    private StyleTable table;
+    private int x0;
+    private int width;
+    private int lineHeight;
+    private int ascent;
+    private int margin;
+    private TabStops tabStops;
+    private int lastTile = -1;
+
+    /**
+     * @param view
+     * @param budget the memory the tiles can take, in bytes
+     */
+    RenderCache(SyntaxView view, long budget) {
+        this.view = view;
+        this.budget = budget;
+        textAAHint = view.getTextAAHint();
+        marginColor = view.getRightMarginColor();
+        tabStops = new TabStops(0, 0);
+    }
+
+    /**
+     * Draw the given line from its tile, drawing the tile first if needed.
+     * @param line
+     * @param g
+     * @param x where the text of the line starts
+     * @param y the baseline of the line
+     * @param table the styles of the view
+     * @param height the line height
+     * @param asc the font ascent
+     * @return false if the line could not be drawn from a tile, and must be
+     * drawn by the caller
+     */
+    boolean drawLine(int line, Graphics g, int x, int y, StyleTable table,
+            int height, int asc) {
+        int cw = view.getContainer().getWidth();
+        int tabWidth = view.getTabWidth();
+        if (table != this.table || x != x0 || cw != width ||
+                height != lineHeight || asc != ascent ||
+                tabWidth != tabStops.width) {
+            clear();
+            this.table = table;
+            x0 = x;
+            width = cw;
+            lineHeight = height;
+            ascent = asc;
+            margin = view.getRightMarginX(
+                    view.getContainer().getFontMetrics(table.getBaseFont()));
+            // the view draws its lines from the x its tab stops start at
+            tabStops = new TabStops(x, tabWidth);
+        }
+        // a tile should not take most of the budget
+        if (width <= 0 || lineHeight <= 0 ||
+                4L * width * lineHeight * TILE_LINES > budget / 4) {
+            return false;
+        }
+        int ndx = line / TILE_LINES;
+        Tile tile = tiles.get(ndx);
+        try {
+            if (tile == null) {
+                // if it is being drawn ahead, that is too late
+                pending.remove(ndx);
+                tile = draw(copyTile(ndx));
+                put(ndx, tile);
+            }
+            drawAhead(ndx);
+        } catch (BadLocationException ex) {
+            log.log(Level.SEVERE, null, ex);
+            return false;
+        }
+        int sy = (line - ndx * TILE_LINES) * lineHeight;
+        int dy = y - ascent;
+        int w = tile.widths[line - ndx * TILE_LINES];
+        g.drawImage(tile.image, 0, dy, w, dy + lineHeight, 0, sy, w, sy + lineHeight, null);
+        return true;
+    }
+
+    /**
+     * Drop the tiles of the lines changed by the given event, or whose tokens
+     * changed with it.  If lines were added or removed, all the tiles after
+     * the change are dropped.
+     * @param changes
+     */
+    void changed(DocumentEvent changes) {
+        epoch++;
+        pending.clear();
+        SyntaxDocument doc = (SyntaxDocument) view.getDocument();
+        Element root = doc.getDefaultRootElement();
+        int length = doc.getLength();
+        int start = Math.min(changes.getOffset(), length);
+        int end = Math.min(changes.getOffset() + changes.getLength(), length);
+        if (doc.changedStart >= 0) {
+            start = Math.min(start, Math.min(doc.changedStart, length));
+            end = Math.max(end, Math.min(doc.changedEnd, length));
+        }
+        int first = root.getElementIndex(start) / TILE_LINES;
+        int last = root.getElementIndex(end) / TILE_LINES;
+        if (changes.getChange(root) != null) {
+            last = Integer.MAX_VALUE;
+        }
+        Iterator<Map.Entry<Integer, Tile>> it = tiles.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Tile> e = it.next();
+            if (e.getKey() >= first && e.getKey() <= last) {
+                bytes -= size(e.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop all the tiles.
+     */
+    void clear() {
+        epoch++;
+        pending.clear();
+        tiles.clear();
+        bytes = 0;
+        lastTile = -1;
+    }
+
+    private void put(int ndx, Tile tile) {
+        Tile replaced = tiles.put(ndx, tile);
+        if (replaced != null) {
+            bytes -= size(replaced);
+        }
+        bytes += size(tile);
+        Iterator<Tile> it = tiles.values().iterator();
+        while (bytes > budget && it.hasNext()) {
+            Tile old = it.next();
+            if (old != tile) {
+                bytes -= size(old);
+                it.remove();
+            }
+        }
+    }
+
+    private static long size(Tile tile) {
+        return 4L * tile.image.getWidth() * tile.image.getHeight();
+    }
+
+    /**
+     * Start drawing the next tiles in the direction the view scrolled to
+     * get to tile ndx.
+     */
+    private void drawAhead(int ndx) throws BadLocationException {
+        int dir = (lastTile < 0 || ndx == lastTile) ? 0 : (ndx > lastTile) ? 1 : -1;
+        lastTile = ndx;
+        int tileCount = (view.getElement().getElementCount() + TILE_LINES - 1) / TILE_LINES;
+        for (int i = 1; dir != 0 && i <= PREFETCH_TILES; i++) {
+            final int next = ndx + dir * i;
+            if (next < 0 || next >= tileCount || tiles.containsKey(next) ||
+                    pending.contains(next)) {
+                continue;
+            }
+            final TileText text = copyTile(next);
+            final int forEpoch = epoch;
+            pending.add(next);
+            getRenderer().submit(new Runnable() {
+
+                @Override
+                public void run() {
+                    final Tile tile = draw(text);
+                    SwingUtilities.invokeLater(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            if (epoch == forEpoch && pending.remove(next)) {
+                                put(next, tile);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Copy the text of tile ndx, and find its runs.  This must be done on
+     * the EDT, with the document read locked.
+     */
+    private TileText copyTile(int ndx) throws BadLocationException {
+        SyntaxDocument doc = (SyntaxDocument) view.getDocument();
+        Element root = view.getElement();
+        int first = ndx * TILE_LINES;
+        int lines = Math.min(TILE_LINES, root.getElementCount() - first);
+        int start = root.getElement(first).getStartOffset();
+        int end = Math.min(doc.getLength(),
+                root.getElement(first + lines - 1).getEndOffset());
+        TileText text = new TileText(this, lines, start);
+        Segment seg = new Segment();
+        doc.getText(start, end - start, seg);
+        text.text = new char[seg.count];
+        System.arraycopy(seg.array, seg.offset, text.text, 0, seg.count);
+        int count = 0;
+        for (int i = 0; i < lines; i++) {
+            Element line = root.getElement(first + i);
+            runs.collect(doc, table, line.getStartOffset(),
+                    Math.min(doc.getLength(), line.getEndOffset()));
+            text.ensureRuns(count + runs.size());
+            for (int r = 0; r < runs.size(); r++) {
+                text.runStarts[count] = runs.getStart(r);
+                text.runEnds[count] = runs.getEnd(r);
+                text.runTypes[count] = runs.getType(r);
+                count++;
+            }
+            text.lineRuns[i] = count;
+        }
+        return text;
+    }
+
+    /**
+     * Draw a tile.  This can run on any thread, as it only uses the text.
+     */
+    private static Tile draw(TileText text) {
+        Tile tile = new Tile(new BufferedImage(text.width,
+                text.lines * text.lineHeight, BufferedImage.TYPE_INT_ARGB_PRE),
+                text.lines);
+        Graphics2D g = tile.image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                    text.textAAHint);
+            g.setFont(text.table.getBaseFont());
+            // the margin goes through all the lines of the tile
+            int margin = 0;
+            if (text.margin > 0) {
+                g.setColor(text.marginColor);
+                g.drawLine(text.margin, 0, text.margin, tile.image.getHeight());
+                margin = text.margin + 1;
+            }
+            Segment seg = new Segment();
+            seg.array = text.text;
+            int r = 0;
+            for (int i = 0; i < text.lines; i++) {
+                int y = i * text.lineHeight + text.ascent;
+                int x = text.x0;
+                for (; r < text.lineRuns[i]; r++) {
+                    seg.offset = text.runStarts[r] - text.start;
+                    seg.count = text.runEnds[r] - text.runStarts[r];
+                    x = text.table.drawText(seg, x, y, g, text.tabStops,
+                            text.runTypes[r], text.runStarts[r]);
+                }
+                // glyphs like italic ones can reach a bit past their advance
+                tile.widths[i] = Math.min(text.width,
+                        Math.max(margin, x + text.lineHeight));
+            }
+        } finally {
+            g.dispose();
+        }
+        return tile;
+    }
+
+    /**
+     * A drawn tile, and how far the drawing of each of its lines reaches, so
+     * only that is copied.
+     */
+    private static class Tile {
+
+        final BufferedImage image;
+        final int[] widths;
+
+        Tile(BufferedImage image, int lines) {
+            this.image = image;
+            widths = new int[lines];
+        }
+    }
+
+    /**
+     * The tab stops of the view, every width pixels from base, as
+     * PlainView.nextTabStop finds them.
+     */
+    private static class TabStops implements TabExpander {
+
+        final int base;
+        final int width;
+
+        TabStops(int base, int width) {
+            this.base = base;
+            this.width = width;
+        }
+
+        @Override
+        public float nextTabStop(float x, int tabOffset) {
+            if (width == 0) {
+                return x;
+            }
+            int ntabs = ((int) x - base) / width;
+            return base + (ntabs + 1) * width;
+        }
+    }
+
+    /**
+     * The text of a tile, its runs, and what to draw it with.
+     */
+    private static class TileText {
+
+        final int lines;
+        final int start;
+        final StyleTable table;
+        final Object textAAHint;
+        final int x0;
+        final int width;
+        final int lineHeight;
+        final int ascent;
+        final int margin;
+        final Color marginColor;
+        final TabStops tabStops;
+        char[] text;
+        // the runs of line i end at lineRuns[i]
+        final int[] lineRuns;
+        int[] runStarts = new int[64];
+        int[] runEnds = new int[64];
+        TokenType[] runTypes = new TokenType[64];
+
+        TileText(RenderCache cache, int lines, int start) {
+            this.lines = lines;
+            this.start = start;
+            table = cache.table;
+            textAAHint = cache.textAAHint;
+            x0 = cache.x0;
+            width = cache.width;
+            lineHeight = cache.lineHeight;
+            ascent = cache.ascent;
+            margin = cache.margin;
+            marginColor = cache.marginColor;
+            tabStops = cache.tabStops;
+            lineRuns = new int[lines];
+        }
+
+        void ensureRuns(int n) {
+            if (n > runStarts.length) {
+                n = Math.max(n, runStarts.length * 2);
+                int[] s = new int[n];
+                int[] e = new int[n];
+                TokenType[] t = new TokenType[n];
+                System.arraycopy(runStarts, 0, s, 0, runStarts.length);
+                System.arraycopy(runEnds, 0, e, 0, runEnds.length);
+                System.arraycopy(runTypes, 0, t, 0, runTypes.length);
+                runStarts = s;
+                runEnds = e;
+                runTypes = t;
+            }
+        }
+    }
+
+    /**
+     * The threads tiles are drawn ahead on, for all views.
+     */
+    private static ExecutorService renderer;
+
+    private static synchronized ExecutorService getRenderer() {
+        if (renderer == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+            renderer = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SyntaxView Renderer");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.NORM_PRIORITY - 1);
+                    return t;
+                }
+            });
+        }
+        return renderer;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane;
+
+/**
+ * A Lexer that can be stopped after any token and restarted there later.
+ * SyntaxDocument needs this to parse a document incrementally, lazily or in
+ * parallel, and to keep the tokens in a TokenList without a Token object
+ * for each.  Lexers generated by JFlex with the %char option and extending
+ * DefaultLexer have all of these methods.
+ *
+ * @author Ayman Al-Sairafi
+ */
+public interface RestartableLexer extends Lexer {
+
+    /**
+     * Returns the current lexical state of the Lexer.  JFlex generated lexers
+     * already have this method.  The initial state (YYINITIAL) is always zero,
+     * and it is the only state the Lexer can be safely restarted in.
+     * @return the current lexical state
+     */
+    public int yystate();
+
+    /**
+     * Enters the given lexical state.  JFlex generated lexers already have
+     * this method.
+     * @param newState the new lexical state
+     */
+    public void yybegin(int newState);
+
+    /**
+     * Returns the position of the last matched text, counted from the last
+     * reset of the Lexer.  JFlex lexers generated with the %char option have
+     * this as the yychar field.
+     * @return position of the last match
+     */
+    public int yychar();
+
+    /**
+     * Take a snapshot of the Lexer right after the last Token returned by
+     * yylex().  The snapshot can be restored later with restoreState.
+     * @return the state of the lexer at the end of the last match
+     */
+    public LexerState saveState();
+
+    /**
+     * Restore a state saved by saveState.  This should be called right after
+     * yyreset with a reader that starts at the position the state was saved.
+     * @param state
+     */
+    public void restoreState(LexerState state);
+
+    /**
+     * Make yylex add the tokens it finds to the given list, instead of
+     * creating a Token object for each.  yylex then returns a shared Token
+     * that only tells there are more tokens.
+     * @param sink the list to add tokens to, or null to create Tokens again
+     * @param offset added to the start of each token added to sink
+     */
+    public void setTokenSink(TokenList sink, int offset);
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane;
+
+/**
+ * The runs of text of one line that are drawn the same way.  Consecutive
+ * tokens and whitespace gaps are in the same run if they look the same in
+ * a StyleTable.  The runs are collected again for each line, reusing the
+ * arrays.
+ *
+ * @author Ayman Al-Sairafi
+ */
+final class StyleRuns {
+
+    private int count = 0;
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private TokenType[] types = new TokenType[16];
+
+    /**
+     * Find the runs of the text from p0 to p1.  Text that is not in a token
+     * (spaces not returned in tokens) is in the default type.
+     * @param doc
+     * @param table
+     * @param p0
+     * @param p1
+     */
+    void collect(SyntaxDocument doc, StyleTable table, int p0, int p1) {
+        count = 0;
+        TokenCursor t = doc.getTokenCursor(p0, p1);
+        // the text from runStart to pos is in a run of runType, which ends
+        // when a token or gap with a different look comes
+        int runStart = p0;
+        int pos = p0;
+        TokenType runType = TokenType.DEFAULT;
+        while (t.next()) {
+            if (pos < t.getStart()) {
+                if (!table.looksSame(runType, TokenType.DEFAULT)) {
+                    add(runStart, pos, runType);
+                    runStart = pos;
+                    runType = TokenType.DEFAULT;
+                }
+                pos = t.getStart();
+            }
+            // the token is only drawn from p0 to p1
+            if (!table.looksSame(runType, t.getType())) {
+                add(runStart, pos, runType);
+                runStart = pos;
+                runType = t.getType();
+            }
+            pos = Math.max(pos, Math.min(t.getEnd(), p1));
+        }
+        // now for any remaining text not tokenized:
+        if (pos < p1) {
+            if (!table.looksSame(runType, TokenType.DEFAULT)) {
+                add(runStart, pos, runType);
+                runStart = pos;
+                runType = TokenType.DEFAULT;
+            }
+            pos = p1;
+        }
+        add(runStart, pos, runType);
+    }
+
+    private void add(int start, int end, TokenType type) {
+        if (start >= end) {
+            return;
+        }
+        if (count == starts.length) {
+            int[] s = new int[count * 2];
+            int[] e = new int[count * 2];
+            TokenType[] t = new TokenType[count * 2];
+            System.arraycopy(starts, 0, s, 0, count);
+            System.arraycopy(ends, 0, e, 0, count);
+            System.arraycopy(types, 0, t, 0, count);
+            starts = s;
+            ends = e;
+            types = t;
+        }
+        starts[count] = start;
+        ends[count] = end;
+        types[count] = type;
+        count++;
+    }
+
+    int size() {
+        return count;
+    }
+
+    int getStart(int ndx) {
+        return starts[ndx];
+    }
+
+    int getEnd(int ndx) {
+        return ends[ndx];
+    }
+
+    TokenType getType(int ndx) {
+        return types[ndx];
+    }
+}
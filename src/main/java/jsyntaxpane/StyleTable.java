@@ -0,0 +1,139 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import javax.swing.text.Segment;
+import javax.swing.text.TabExpander;
+
+/**
+ * The SyntaxStyles resolved for one font.  This holds the style of each
+ * TokenType with its derived Font and FontMetrics, indexed by the ordinal of
+ * the TokenType, so a view can paint tokens without looking up or deriving
+ * anything.
+ *
+ * A table is only good for the font and the styles it was created with, see
+ * isFor.  It keeps copies of the styles, and is not changed once created, so
+ * the threads of the RenderCache can draw with it while the EDT creates a new
+ * one for changed styles.
+ *
+ * @author Ayman Al-Sairafi
+ */
+final class StyleTable {
+
+    // the background and border flags of SyntaxStyle.drawText
+    private static final int DECORATIONS = 0x18;
+
+    private final Font baseFont;
+    private final int version;
+    // the SyntaxStyles the table was created from, which can be changed
+    private final SyntaxStyle[] sources;
+    // the copies drawn with
+    private final SyntaxStyle[] styles;
+    private final Font[] fonts;
+    private final FontMetrics[] metrics;
+
+    /**
+     * Resolve the styles for the given font.  This is called on the EDT.
+     * @param component the component to get the FontMetrics from
+     * @param baseFont
+     */
+    StyleTable(Component component, Font baseFont) {
+        SyntaxStyles syntaxStyles = SyntaxStyles.getInstance();
+        TokenType[] types = TokenType.values();
+        this.baseFont = baseFont;
+        version = syntaxStyles.getVersion();
+        sources = new SyntaxStyle[types.length];
+        styles = new SyntaxStyle[types.length];
+        fonts = new Font[types.length];
+        metrics = new FontMetrics[types.length];
+        for (int i = 0; i < types.length; i++) {
+            sources[i] = syntaxStyles.getStyle(types[i]);
+            styles[i] = new SyntaxStyle(sources[i].getColor(), sources[i].getFontStyle());
+            resolve(component, i);
+        }
+    }
+
+    private void resolve(Component component, int ndx) {
+        int fontStyle = styles[ndx].getFontStyle();
+        // styles mostly share a few fonts
+        for (int i = 0; i < ndx; i++) {
+            if (styles[i].getFontStyle() == fontStyle) {
+                fonts[ndx] = fonts[i];
+                metrics[ndx] = metrics[i];
+                return;
+            }
+        }
+        fonts[ndx] = baseFont.deriveFont(fontStyle);
+        metrics[ndx] = component.getFontMetrics(fonts[ndx]);
+    }
+
+    Font getBaseFont() {
+        return baseFont;
+    }
+
+    /**
+     * @param font
+     * @return true if this table is for the given font and the current
+     * SyntaxStyles, with the colors and font styles they have now
+     */
+    boolean isFor(Font font) {
+        if (!baseFont.equals(font) ||
+                version != SyntaxStyles.getInstance().getVersion()) {
+            return false;
+        }
+        for (int i = 0; i < styles.length; i++) {
+            Color color = sources[i].getColor();
+            if (sources[i].getFontStyle() != styles[i].getFontStyle() ||
+                    (color == null ? styles[i].getColor() != null :
+                        !color.equals(styles[i].getColor()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return true if the text of both types is drawn the same way, so it can
+     * be drawn in one go.  Styles with a background or a border are drawn
+     * separately for each token.
+     * @param a
+     * @param b
+     * @return
+     */
+    boolean looksSame(TokenType a, TokenType b) {
+        SyntaxStyle sa = styles[a.ordinal()];
+        SyntaxStyle sb = styles[b.ordinal()];
+        if (((sa.getFontStyle() | sb.getFontStyle()) & DECORATIONS) != 0) {
+            return false;
+        }
+        return sa == sb || (sa.getFontStyle() == sb.getFontStyle() &&
+                sa.getColor().equals(sb.getColor()));
+    }
+
+    /**
+     * Draw the text with the style of the given TokenType.
+     * @see SyntaxStyle#drawText(Segment, int, int, Graphics, TabExpander, int)
+     */
+    int drawText(Segment segment, int x, int y, Graphics graphics,
+            TabExpander e, TokenType type, int startOffset) {
+        int ndx = type.ordinal();
+        return styles[ndx].drawText(segment, x, y, graphics, e, startOffset,
+                fonts[ndx], metrics[ndx]);
+    }
+}
@@ -14,23 +14,47 @@
 package jsyntaxpane;
 
 import java.io.CharArrayReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.swing.SwingUtilities;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.UndoableEditEvent;
 import javax.swing.event.UndoableEditListener;
+import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Element;
+import javax.swing.text.DefaultEditorKit;
 import javax.swing.text.PlainDocument;
 import javax.swing.text.Segment;
+import javax.swing.undo.CompoundEdit;
 import javax.swing.undo.UndoManager;
 
 /**
@@ -42,86 +66,1897 @@ import javax.swing.undo.UndoManager;
  */
 public class SyntaxDocument extends PlainDocument {
 
+    public static final String PROPERTY_INCREMENTAL_PARSE = "IncrementalParse";
+    public static final String PROPERTY_BACKGROUND_PARSE = "BackgroundParse";
+    public static final String PROPERTY_LAZY_PARSE = "LazyParse";
+    public static final String PROPERTY_PARALLEL_PARSE = "ParallelParse";
+    /**
+     * In lazy mode, the text is lexed in blocks of about this many chars.
+     */
+    static final int LAZY_BLOCK = 32 * 1024;
+    /**
+     * In parallel mode, texts at least this long are lexed in chunks on
+     * several threads.
+     */
+    static final int PARALLEL_MIN = 1024 * 1024;
+    private static final int PARALLEL_THREADS = Runtime.getRuntime().availableProcessors();
     Lexer lexer;
-    List<Token> tokens;
+    TokenList tokens;
+    /**
+     * The result of the last parse.  Its tokens are the tokens list.
+     */
+    ParseResult parsed;
+    boolean incremental = false;
+    boolean background = false;
+    boolean lazy = false;
+    boolean parallel = false;
+    /**
+     * Counts the changes to the document.  A background parse is only used
+     * if the document did not change since it started.
+     */
+    volatile int version;
+    /**
+     * While a batch is open or a background parse is pending, the tokens are
+     * those of an older version of the document.  The text between
+     * dirtyStart and dirtyEnd in the current document changed since then,
+     * and the text after it moved by dirtyDelta.  dirtyStart is -1 if the tokens are up to date.
+     */
+    int dirtyStart = -1;
+    int dirtyEnd;
+    int dirtyDelta;
+    /**
+     * The text whose tokens changed in the last parse, including the text
+     * changed since the parse before it.  Views repaint it when they are
+     * told about the change.  changedStart is -1 if the text changed since
+     * the last parse.
+     */
+    int changedStart = -1;
+    int changedEnd;
+    /**
+     * Number of open batches.  Changes are only parsed when the outermost
+     * batch ends.
+     */
+    private int batchDepth = 0;
+    /**
+     * True from the start of a background parse until its result is used.
+     */
+    private boolean parsePending;
+    /**
+     * The state of this document in the ParseScheduler.
+     */
+    ParseScheduler.Entry scheduling;
+    /**
+     * The Lexer of the background parses, borrowed from the LexerPool of the
+     * Lexer class while background parsing is on.  backgroundBusy is true
+     * while a parser thread uses it, and the thread gives it back to the
+     * pool when done if it was replaced meanwhile.  Both are guarded by
+     * backgroundLock.
+     */
+    private Lexer backgroundLexer;
+    private boolean backgroundBusy;
+    private final Object backgroundLock = new Object();
+    /**
+     * The types of tokens whose text is indexed, so the tokens with the same
+     * text can be found without looking at all the others.  The set is
+     * replaced, never changed, when types are added.
+     */
+    private volatile Set<TokenType> indexedTypes = EnumSet.noneOf(TokenType.class);
     UndoManager undo = new CompoundUndoManager();
+    /**
+     * While not null, undoable edits are added to it instead of the undo
+     * manager.
+     */
+    private CompoundEdit compoundEdit;
+
+    public SyntaxDocument(Lexer lexer) {
+        this(lexer, new LoadableContent());
+    }
+
+    /**
+     * Create a document with the given content, which may already have
+     * text, like a MappedContent.  The lines of the text are found, and it
+     * is parsed when its tokens are first needed, so the parse settings can
+     * be set before.
+     * @param lexer
+     * @param content
+     */
+    public SyntaxDocument(Lexer lexer, Content content) {
+        super(content);
+        putProperty(PlainDocument.tabSizeAttribute, 4);
+        this.lexer = lexer;
+        // Listen for undo and redo events
+        addUndoableEditListener(new UndoableEditListener() {
+
+            @Override
+            public void undoableEditHappened(UndoableEditEvent evt) {
+                if (!evt.getEdit().isSignificant()) {
+                    return;
+                }
+                if (compoundEdit != null) {
+                    compoundEdit.addEdit(evt.getEdit());
+                } else {
+                    undo.addEdit(evt.getEdit());
+                }
+            }
+        });
+        if (getLength() > 0) {
+            createLines();
+            dirtyStart = 0;
+            dirtyEnd = getLength();
+            dirtyDelta = getLength();
+        }
+    }
+
+    /**
+     * Create the line elements for the text the content was created with.
+     */
+    private void createLines() {
+        writeLock();
+        try {
+            BranchElement root = (BranchElement) getDefaultRootElement();
+            root.replace(0, root.getElementCount(), findLines());
+        } catch (BadLocationException ex) {
+            log.log(Level.SEVERE, null, ex);
+        } finally {
+            writeUnlock();
+        }
+    }
+
+    /**
+     * Create the line elements for all the text of the content, without
+     * adding them to the root.  The caller must hold the write lock.
+     * @return the lines
+     * @throws BadLocationException
+     */
+    private Element[] findLines() throws BadLocationException {
+        BranchElement root = (BranchElement) getDefaultRootElement();
+        List<Element> lines = new ArrayList<Element>();
+        Segment seg = new Segment();
+        seg.setPartialReturn(true);
+        int length = getLength() + 1;
+        int start = 0;
+        int pos = 0;
+        while (pos < length) {
+            getContent().getChars(pos, length - pos, seg);
+            for (int i = 0; i < seg.count; i++) {
+                if (seg.array[seg.offset + i] == '\n') {
+                    lines.add(createLeafElement(root, null, start, pos + i + 1));
+                    start = pos + i + 1;
+                }
+            }
+            pos += seg.count;
+        }
+        return lines.toArray(new Element[lines.size()]);
+    }
+
+    /**
+     * Record that the text between start and end (in the current document)
+     * replaced text that was delta characters shorter, and update the tokens
+     * unless a batch is open.
+     * @param start start of the changed text
+     * @param end end of the changed text
+     * @param delta the change in the document length
+     */
+    private void changed(int start, int end, int delta) {
+        version = (version + 1) & Integer.MAX_VALUE;
+        changedStart = -1;
+        if (dirtyStart < 0) {
+            dirtyStart = start;
+            dirtyEnd = end;
+            dirtyDelta = delta;
+        } else {
+            // the old dirty end moves with the text after the change, unless
+            // the change replaced it
+            dirtyEnd = (dirtyEnd >= end - delta) ? dirtyEnd + delta : end;
+            dirtyStart = Math.min(dirtyStart, start);
+            dirtyDelta += delta;
+        }
+        if (batchDepth == 0) {
+            parseDirty(false);
+        }
+    }
+
+    /**
+     * Update the tokens for the text changed since the last parse.  In
+     * background mode this only starts the parse.
+     * @param notify true if this is not done for a document event, so the
+     * views must be told the tokens changed
+     */
+    private void parseDirty(boolean notify) {
+        if (lexer == null) {
+            // if we have no lexer, then we must have no tokens...
+            setParsed(null);
+            dirtyStart = -1;
+        } else if (background) {
+            parseInBackground();
+            return;
+        } else {
+            ParseResult result;
+            if (!incremental || parsed == null || parsed.tokens.isEmpty() ||
+                    !(lexer instanceof RestartableLexer)) {
+                result = parse(lexer, new DocumentText(), lazyStop(), -1);
+                findChanged(parsed, result, dirtyDelta, getLength());
+            } else {
+                try {
+                    result = parse((RestartableLexer) lexer, new DocumentText(),
+                            parsed, dirtyStart, dirtyEnd, dirtyDelta, -1);
+                } catch (RuntimeException ex) {
+                    result = parseAfterFailure(ex);
+                }
+            }
+            setParsed(result);
+            dirtyStart = -1;
+        }
+        if (notify) {
+            fireTokensChanged();
+        }
+    }
+
+    /**
+     * Lex the document from the start again after the lexer failed while
+     * the tokens were updated in place, which leaves them half updated.
+     * @param ex what the lexer threw
+     * @return the result of the new parse
+     */
+    private ParseResult parseAfterFailure(RuntimeException ex) {
+        log.log(Level.WARNING, "Lexer failed, parsing the whole document again", ex);
+        setParsed(null);
+        return parse(lexer, new DocumentText(), lazyStop(), -1);
+    }
+
+    /**
+     * @return where a full parse of the dirty text stops: at the end of the
+     * text, or in lazy mode after the first block or as far as the last
+     * parse got.  Lexers that are not restartable always lex all of it.
+     */
+    private int lazyStop() {
+        if (!lazy || !(lexer instanceof RestartableLexer)) {
+            return Integer.MAX_VALUE;
+        }
+        if (parsed == null || parsed.lexedState == null) {
+            return LAZY_BLOCK;
+        }
+        return Math.max(LAZY_BLOCK, parsed.lexedTo + dirtyDelta);
+    }
+
+    private void setParsed(ParseResult result) {
+        parsed = result;
+        tokens = (result == null) ? null : result.tokens;
+        if (result == null) {
+            changedStart = 0;
+            changedEnd = getLength();
+        } else {
+            changedStart = result.changedStart;
+            changedEnd = result.changedEnd;
+        }
+        // the tokens of changed text were not painted while it was dirty
+        if (dirtyStart >= 0) {
+            changedStart = Math.min(changedStart, dirtyStart);
+            changedEnd = Math.max(changedEnd, dirtyEnd);
+        }
+    }
+
+    /**
+     * Tell the views that the tokens from changedStart to changedEnd changed
+     * when they were parsed after the document events for the change.
+     */
+    private void fireTokensChanged() {
+        if (changedStart < 0) {
+            return;
+        }
+        int start = Math.min(changedStart, getLength());
+        int end = Math.min(changedEnd, getLength());
+        DefaultDocumentEvent e = new DefaultDocumentEvent(start, end - start,
+                DocumentEvent.EventType.CHANGE);
+        e.end();
+        super.fireChangedUpdate(e);
+    }
+
+    /**
+     * Set the changed range of a full parse result to the text from the
+     * first token that is not the same as in the old result to the last.
+     * The tokens are compared from both ends, the tokens at the end moved by
+     * delta.
+     * @param old the result of the last parse, or null
+     * @param result
+     * @param delta the change in the text length since the old result
+     * @param length the length of the text
+     */
+    private static void findChanged(ParseResult old, ParseResult result,
+            int delta, int length) {
+        if (old == null) {
+            return;
+        }
+        TokenList now = result.tokens;
+        TokenList was = old.tokens;
+        int n = now.size();
+        int o = was.size();
+        int head = 0;
+        while (head < n && head < o && now.isSame(head, was, head, 0)) {
+            head++;
+        }
+        int tail = 0;
+        while (tail < n - head && tail < o - head &&
+                now.isSame(n - 1 - tail, was, o - 1 - tail, delta)) {
+            tail++;
+        }
+        result.changedStart = (head == 0) ? 0 : now.getEnd(head - 1);
+        result.changedEnd = (tail == 0) ? length : now.getStart(n - tail);
+        result.changedEnd = Math.max(result.changedStart, result.changedEnd);
+    }
+
+    /**
+     * Lex the given text, up to the first token that ends at or after
+     * stopAt.
+     * @param lexer
+     * @param text
+     * @param stopAt where to stop, Integer.MAX_VALUE to lex all of the text
+     * @param forVersion the document version the text is a snapshot of, or
+     * -1 if the text is the document itself.
+     * @return the result
+     * @throws CancellationException if the document changed from forVersion
+     */
+    private ParseResult parse(Lexer lexer, ParseText text, int stopAt,
+            int forVersion) {
+        if (!(lexer instanceof RestartableLexer)) {
+            return parseWhole(lexer, text, forVersion);
+        }
+        return parse((RestartableLexer) lexer, text, stopAt, forVersion);
+    }
+
+    /**
+     * Lex all of the given text with a Lexer that cannot be restarted, as
+     * the Lexers that only implement Lexer.  The lines get no checkpoints,
+     * and no token is restartable, so the text is always lexed from the
+     * start.
+     * @param lexer
+     * @param text
+     * @param forVersion as in parse
+     * @return the result
+     * @throws CancellationException if the document changed from forVersion
+     */
+    private ParseResult parseWhole(Lexer lexer, ParseText text, int forVersion) {
+        TokenList toks = new TokenList(text.length() / 10);
+        Set<TokenType> indexed = indexedTypes;
+        ParseResult result = new ParseResult(toks, new int[0],
+                new LexerState[0], indexed);
+        try {
+            lexer.yyreset(text.reader(0));
+            Token t;
+            while ((t = lexer.yylex()) != null) {
+                addToken(toks, t, 0);
+                int last = toks.size() - 1;
+                checkVersion(forVersion, last);
+                indexToken(toks, last, text, indexed);
+            }
+            toks.ensurePairs();
+        } catch (IOException ex) {
+            // This will not be thrown from the Lexer
+            log.log(Level.SEVERE, null, ex);
+        }
+        result.lexedTo = text.length();
+        result.changedEnd = text.length();
+        return result;
+    }
+
+    /**
+     * Lex the given text with a RestartableLexer, up to the first token that
+     * ends at or after stopAt, and record the checkpoints of the lines.
+     */
+    private ParseResult parse(RestartableLexer lexer, ParseText text, int stopAt,
+            int forVersion) {
+        if (parallel && stopAt == Integer.MAX_VALUE && text.length() >= PARALLEL_MIN &&
+                PARALLEL_THREADS > 1) {
+            ParseResult result = parseParallel(lexer, text, forVersion);
+            if (result != null) {
+                return result;
+            }
+        }
+        TokenList toks = new TokenList(Math.min(text.length(), stopAt) / 10);
+        Set<TokenType> indexed = indexedTypes;
+        int lines = text.lineCount();
+        LineCheckpoints checkpoints = new LineCheckpoints(text, new int[lines],
+                new LexerState[lines], 0, 0);
+        ParseResult result = new ParseResult(toks, checkpoints.leads,
+                checkpoints.states, indexed);
+        long ts = System.nanoTime();
+        lexer.setTokenSink(toks, 0);
+        try {
+            LookaheadReader reader = new LookaheadReader(text.reader(0), 0);
+            lexer.yyreset(reader);
+            Token t;
+            while ((t = lexer.yylex()) != null) {
+                addToken(toks, t, 0);
+                int last = toks.size() - 1;
+                checkVersion(forVersion, last);
+                LexerState state = lexer.saveState();
+                int pos = lexer.yychar() + lexer.yylength();
+                toks.setRestartable(last, isRestartable(toks, last, state, pos));
+                indexToken(toks, last, text, indexed);
+                reader.passed(checkpoints.boundary, pos, result.lookaheads);
+                checkpoints.passed(pos, state);
+                if (pos >= stopAt && pos < text.length()) {
+                    checkpoints.stop(result, pos);
+                    break;
+                }
+            }
+            if (result.lexedState == null) {
+                checkpoints.finish(lines);
+                result.lexedTo = text.length();
+                result.lexedLines = lines;
+            }
+            toks.ensurePairs();
+        } catch (IOException ex) {
+            // This will not be thrown from the Lexer
+            log.log(Level.SEVERE, null, ex);
+        } finally {
+            lexer.setTokenSink(null, 0);
+            if (log.isLoggable(Level.FINEST)) {
+                log.finest(String.format("Parsed %d in %d ms, giving %d tokens\n",
+                        text.length(), (System.nanoTime() - ts) / 1000000, toks.size()));
+            }
+        }
+        result.changedEnd = text.length();
+        return result;
+    }
+
+    /**
+     * Lex the text in chunks on several threads, and join the chunks.  Each
+     * chunk starts at a line start in the initial state of the lexer.  Where
+     * the tokens joined so far end, the lexer may be in another state, as
+     * when a comment goes on into the next chunk.  Then the text is lexed
+     * from there, on this thread, until the lexer is back in its initial
+     * state at the end of a token of a later chunk that is restartable, so
+     * the tokens after it are the same as lexing the whole text.
+     * @return the result, or null if the text cannot be lexed in parallel
+     * @throws CancellationException if the document changed from forVersion
+     */
+    private ParseResult parseParallel(RestartableLexer lexer, ParseText text, int forVersion) {
+        int length = text.length();
+        int lines = text.lineCount();
+        // the chunks start at the line starts after even splits of the text
+        int n = Math.min(PARALLEL_THREADS, length / (PARALLEL_MIN / 4));
+        int[] firstLines = new int[n + 1];
+        int count = 1;
+        for (int i = 1; i < n; i++) {
+            int line = text.lineOf((int) ((long) length * i / n)) + 1;
+            if (line < lines && line > firstLines[count - 1]) {
+                firstLines[count++] = line;
+            }
+        }
+        if (count < 2) {
+            return null;
+        }
+        firstLines[count] = lines;
+        Set<TokenType> indexed = indexedTypes;
+        int[] leads = new int[lines];
+        LexerState[] states = new LexerState[lines];
+        LexerPool pool = LexerPool.forClass(lexer.getClass());
+        Chunk[] chunks = new Chunk[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                int start = text.lineStart(firstLines[i]);
+                int end = (i + 1 < count) ? text.lineStart(firstLines[i + 1]) : length;
+                chunks[i] = new Chunk(i == 0 ? text : text.forWorker(),
+                        i == 0 ? lexer : (RestartableLexer) pool.borrow(), i == 0 ? null : pool,
+                        start, end, firstLines[i], firstLines[i + 1],
+                        leads, states, indexed, forVersion);
+            }
+        } catch (IllegalStateException ex) {
+            log.log(Level.WARNING, "Cannot create Lexers for parallel parsing", ex);
+            for (int i = 1; i < count && chunks[i] != null; i++) {
+                pool.release(chunks[i].lexer);
+            }
+            return null;
+        }
+        long ts = System.nanoTime();
+        List<Future<Chunk>> lexing = new ArrayList<Future<Chunk>>(count - 1);
+        try {
+            for (int i = 1; i < count; i++) {
+                lexing.add(getChunkLexers().submit(chunks[i]));
+            }
+            chunks[0].call();
+            for (Future<Chunk> f : lexing) {
+                f.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            for (Future<Chunk> f : lexing) {
+                f.cancel(false);
+            }
+        }
+        int total = 0;
+        for (Chunk c : chunks) {
+            total += c.tokens.size();
+        }
+        TokenList toks = new TokenList(total + 16);
+        ParseResult result = new ParseResult(toks, leads, states, indexed);
+        // the joined tokens end at pos, where the lexer is in state.  The
+        // tokens of chunk k from index from on come next
+        int pos = 0;
+        LexerState state = LexerState.INITIAL;
+        int k = 0;
+        int from = 0;
+        int relexed = 0;
+        while (k < count) {
+            Chunk c = chunks[k];
+            if (from < c.tokens.size()) {
+                toks.addAll(c.tokens, from, c.tokens.size());
+                result.lookaheads.addAll(c.lookaheads,
+                        (from == 0) ? c.start : c.tokens.getEnd(from - 1), 0);
+                pos = c.lexedTo;
+                state = c.state;
+                // the last token of the chunk passed the start of these
+                // lines, which the chunk did not record
+                for (int line = c.endLine; line < lines && text.lineStart(line) < pos; line++) {
+                    leads[line] = text.lineStart(line) - c.lastBoundary;
+                    states[line] = c.lastState;
+                }
+            }
+            k++;
+            if (k == count) {
+                break;
+            }
+            from = chunks[k].restartAfter(pos, state);
+            if (from >= 0) {
+                continue;
+            }
+            // lex from pos until the tokens agree with a later chunk
+            int base = pos;
+            LineCheckpoints checkpoints = new LineCheckpoints(text, leads, states,
+                    lineFrom(text, pos), pos);
+            checkpoints.state = state;
+            lexer.setTokenSink(toks, base);
+            try {
+                LookaheadReader reader = new LookaheadReader(text.reader(base), base);
+                lexer.yyreset(reader);
+                lexer.restoreState(state);
+                Token t;
+                while (from < 0 && (t = lexer.yylex()) != null) {
+                    addToken(toks, t, base);
+                    int last = toks.size() - 1;
+                    checkVersion(forVersion, relexed++);
+                    state = lexer.saveState();
+                    pos = base + lexer.yychar() + lexer.yylength();
+                    toks.setRestartable(last, isRestartable(toks, last, state, pos));
+                    indexToken(toks, last, text, indexed);
+                    reader.passed(checkpoints.boundary, pos, result.lookaheads);
+                    checkpoints.passed(pos, state);
+                    // chunks that end before pos cannot agree any more
+                    while (k < count && chunks[k].lexedTo < pos) {
+                        k++;
+                    }
+                    if (k < count) {
+                        from = chunks[k].restartAfter(pos, state);
+                    }
+                }
+            } catch (IOException ex) {
+                // This will not be thrown from the Lexer
+                log.log(Level.SEVERE, null, ex);
+            } finally {
+                lexer.setTokenSink(null, 0);
+            }
+            if (from < 0) {
+                // lexed to the end of the text
+                break;
+            }
+        }
+        // the lines after the last token
+        LineCheckpoints checkpoints = new LineCheckpoints(text, leads, states,
+                lineFrom(text, pos), pos);
+        checkpoints.state = state;
+        checkpoints.finish(lines);
+        result.lexedTo = length;
+        result.lexedLines = lines;
+        result.changedEnd = length;
+        toks.ensurePairs();
+        if (log.isLoggable(Level.FINEST)) {
+            log.finest(String.format("Parsed %d in %d chunks in %d ms, relexed %d tokens, giving %d tokens\n",
+                    length, count, (System.nanoTime() - ts) / 1000000, relexed, toks.size()));
+        }
+        return result;
+    }
+
+    /**
+     * @return the first line that starts at or after pos
+     */
+    private static int lineFrom(ParseText text, int pos) {
+        int line = text.lineOf(pos);
+        return (text.lineStart(line) < pos) ? line + 1 : line;
+    }
+
+    /**
+     * The tokens of a chunk of the text, lexed from its start in the initial
+     * state of the lexer, up to the first token that ends at or after the
+     * end of the chunk.  The checkpoints of the lines of the chunk are
+     * recorded as if the lexer was in the initial state at its start.
+     */
+    private class Chunk implements Callable<Chunk> {
+
+        final ParseText text;
+        final RestartableLexer lexer;
+        // the pool to give the lexer back to, null if it is not from one
+        final LexerPool pool;
+        final int start;
+        final int end;
+        final int firstLine;
+        final int endLine;
+        final int[] leads;
+        final LexerState[] states;
+        final Set<TokenType> indexed;
+        final int forVersion;
+        TokenList tokens;
+        final Lookaheads lookaheads = new Lookaheads();
+        // the end of the last token, and the state of the lexer there
+        int lexedTo;
+        LexerState state = LexerState.INITIAL;
+        // the end of the token before the last, and the state there.  The
+        // lines from endLine that start before lexedTo have this checkpoint
+        int lastBoundary;
+        LexerState lastState;
+
+        Chunk(ParseText text, RestartableLexer lexer, LexerPool pool, int start, int end,
+                int firstLine, int endLine, int[] leads, LexerState[] states,
+                Set<TokenType> indexed, int forVersion) {
+            this.text = text;
+            this.lexer = lexer;
+            this.pool = pool;
+            this.start = start;
+            this.end = end;
+            this.firstLine = firstLine;
+            this.endLine = endLine;
+            this.leads = leads;
+            this.states = states;
+            this.indexed = indexed;
+            this.forVersion = forVersion;
+            this.lexedTo = start;
+        }
+
+        @Override
+        public Chunk call() {
+            tokens = new TokenList((end - start) / 10);
+            LineCheckpoints checkpoints = new LineCheckpoints(text, leads, states,
+                    firstLine, start, endLine);
+            lexer.setTokenSink(tokens, start);
+            try {
+                LookaheadReader reader = new LookaheadReader(text.reader(start), start);
+                lexer.yyreset(reader);
+                Token t;
+                while ((t = lexer.yylex()) != null) {
+                    addToken(tokens, t, start);
+                    int last = tokens.size() - 1;
+                    checkVersion(forVersion, last);
+                    state = lexer.saveState();
+                    lexedTo = start + lexer.yychar() + lexer.yylength();
+                    tokens.setRestartable(last, isRestartable(tokens, last, state, lexedTo));
+                    indexToken(tokens, last, text, indexed);
+                    reader.passed(checkpoints.boundary, lexedTo, lookaheads);
+                    lastBoundary = checkpoints.boundary;
+                    lastState = checkpoints.state;
+                    checkpoints.passed(lexedTo, state);
+                    if (lexedTo >= end) {
+                        break;
+                    }
+                }
+            } catch (IOException ex) {
+                // This will not be thrown from the Lexer
+                log.log(Level.SEVERE, null, ex);
+            } finally {
+                lexer.setTokenSink(null, 0);
+                if (pool != null) {
+                    pool.release(lexer);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Find where the tokens of this chunk are the same as lexing on
+         * from pos in the given state.  That is where the lexer is in its
+         * initial state at the end of a restartable token of this chunk,
+         * which is where the lexer of the chunk stopped reading.
+         * @return the index of the first token to use, or -1 if they are not
+         * the same at pos
+         */
+        int restartAfter(int pos, LexerState state) {
+            if (!state.isInitial() || pos < start) {
+                return -1;
+            }
+            if (pos == start) {
+                return 0;
+            }
+            int ndx = tokens.findAfter(pos - 1);
+            if (ndx < tokens.size() && tokens.getEnd(ndx) == pos &&
+                    tokens.isRestartable(ndx)) {
+                return ndx + 1;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * The threads the chunks of parallel parses are lexed on.
+     */
+    private static ExecutorService chunkLexers;
+
+    private static synchronized ExecutorService getChunkLexers() {
+        if (chunkLexers == null) {
+            chunkLexers = Executors.newFixedThreadPool(PARALLEL_THREADS, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SyntaxDocument Chunk Lexer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return chunkLexers;
+    }
+
+    /**
+     * Lex the given text again after the text between start and end
+     * replaced text that was delta characters shorter.
+     * The lexer is restarted at the closest restartable token before the
+     * line of the change, and it stops as soon as the tokens it returns are
+     * the same as the old ones, shifted by delta.  If the old result was
+     * lexed lazily, it also stops once it passed the end of the old tokens,
+     * and changes after that end need no lexing.  Where the lexer read ahead
+     * into the changed line while lexing an earlier token, it is restarted
+     * before that token.
+     * @param lexer
+     * @param text
+     * @param old the result of parsing the text before the change
+     * @param start start of the changed text
+     * @param end end of the changed text
+     * @param delta the change in the text length
+     * @param forVersion the document version the text is a snapshot of, or
+     * -1 if the text is the document itself.
+     * @return the result
+     * @throws CancellationException if the document changed from forVersion
+     */
+    private ParseResult parse(RestartableLexer lexer, ParseText text, ParseResult old,
+            int start, int end, int delta, int forVersion) {
+        if (old.tokens.isEmpty()) {
+            return parse(lexer, text, Integer.MAX_VALUE, forVersion);
+        }
+        int lines = text.lineCount();
+        // the last token we keep must end before the start of the changed
+        // line, so any lookahead the lexer did on it is still valid.
+        int limit = text.lineStart(text.lineOf(start));
+        if (old.lexedState != null && limit > old.lexedTo &&
+                !old.lookaheads.reaches(limit)) {
+            // the change is on a line after the lexed text, so none of the
+            // tokens or checkpoints change
+            ParseResult result = new ParseResult(
+                    (forVersion < 0) ? old.tokens : old.tokens.copy(),
+                    new int[lines], new LexerState[lines], old.indexed);
+            result.lookaheads.addAll(old.lookaheads, 0, 0);
+            System.arraycopy(old.lineLeads, 0, result.lineLeads, 0, old.lexedLines);
+            System.arraycopy(old.lineStates, 0, result.lineStates, 0, old.lexedLines);
+            result.lexedTo = old.lexedTo;
+            result.lexedState = old.lexedState;
+            result.lexedLines = old.lexedLines;
+            result.changedStart = start;
+            result.changedEnd = start;
+            return result;
+        }
+        // The tokens are updated in place, unless other threads may be
+        // reading them, and if the lexer fails the caller must drop them.
+        // The gap of the list is moved to the restart point, so the new
+        // tokens are added before the old tokens after it.
+        TokenList toks = (forVersion < 0) ? old.tokens : old.tokens.copy();
+        Set<TokenType> indexed = indexedTypes;
+        long ts = System.nanoTime();
+        // nor may the lexer have read up to the changed line after it
+        limit = old.lookaheads.restartBefore(limit);
+        int keep = toks.findAfter(limit - 1) - 1;
+        while (keep >= 0 && !toks.isRestartable(keep)) {
+            keep--;
+        }
+        int restartAt = (keep < 0) ? 0 : toks.getEnd(keep);
+        toks.moveGap(keep + 1);
+        // lines starting up to restartAt are before the change, and keep
+        // their checkpoints.  The rest are recorded as the lexer passes them
+        int firstLine = text.lineOf(restartAt);
+        LineCheckpoints checkpoints = new LineCheckpoints(text, new int[lines],
+                new LexerState[lines], firstLine + 1, restartAt);
+        System.arraycopy(old.lineLeads, 0, checkpoints.leads, 0, firstLine + 1);
+        System.arraycopy(old.lineStates, 0, checkpoints.states, 0, firstLine + 1);
+        // the old tokens after the change may not be indexed for all types
+        ParseResult result = new ParseResult(toks, checkpoints.leads,
+                checkpoints.states, old.indexed);
+        result.lookaheads.addBefore(old.lookaheads, restartAt);
+        // the old tokens end here in the new text
+        int stopAt = (old.lexedState == null) ? Integer.MAX_VALUE
+                : Math.max(end, old.lexedTo + delta);
+        int relexed = 0;
+        int relexedEnd = text.length();
+        lexer.setTokenSink(toks, restartAt);
+        try {
+            LookaheadReader reader = new LookaheadReader(text.reader(restartAt), restartAt);
+            lexer.yyreset(reader);
+            Token t;
+            boolean converged = false;
+            while ((t = lexer.yylex()) != null) {
+                addToken(toks, t, restartAt);
+                checkVersion(forVersion, relexed);
+                relexed++;
+                int last = toks.getGapIndex() - 1;
+                LexerState state = lexer.saveState();
+                int pos = restartAt + lexer.yychar() + lexer.yylength();
+                boolean safe = isRestartable(toks, last, state, pos);
+                toks.setRestartable(last, safe);
+                indexToken(toks, last, text, indexed);
+                reader.passed(checkpoints.boundary, pos, result.lookaheads);
+                checkpoints.passed(pos, state);
+                if (pos >= stopAt && pos < text.length()) {
+                    // all the old tokens were passed without converging
+                    toks.removeAfterGap(toks.size() - toks.getGapIndex());
+                    checkpoints.stop(result, pos);
+                    break;
+                }
+                if (!safe || toks.getStart(last) < end) {
+                    continue;
+                }
+                // find the old token that would be at the same place now.
+                // The old tokens before it are replaced by the new ones
+                int oldStart = toks.getStart(last) - delta;
+                int oi = last + 1;
+                while (oi < toks.size() && toks.getStart(oi) < oldStart) {
+                    toks.removeAfterGap(1);
+                }
+                if (oi < toks.size() && toks.isRestartable(oi) &&
+                        toks.isSame(last, toks, oi, delta)) {
+                    // converged, the remaining old tokens are only shifted
+                    result.lookaheads.addAll(old.lookaheads,
+                            toks.getEnd(last) - delta, delta);
+                    toks.removeAfterGap(1);
+                    toks.shiftAfterGap(delta);
+                    // and so are the checkpoints of the remaining lines,
+                    // which are all after the change
+                    int shift = old.lineLeads.length - lines;
+                    for (int i = checkpoints.line; i < lines; i++) {
+                        checkpoints.leads[i] = old.lineLeads[i + shift];
+                        checkpoints.states[i] = old.lineStates[i + shift];
+                    }
+                    if (old.lexedState != null) {
+                        result.lexedTo = old.lexedTo + delta;
+                        result.lexedState = old.lexedState;
+                        result.lexedLines = old.lexedLines - shift;
+                    }
+                    converged = true;
+                    relexedEnd = toks.getStart(last);
+                    break;
+                }
+            }
+            if (!converged && result.lexedState == null) {
+                toks.removeAfterGap(toks.size() - toks.getGapIndex());
+                checkpoints.finish(lines);
+            }
+            // on the EDT, the pairs are only found again when needed
+            if (forVersion >= 0) {
+                toks.ensurePairs();
+            }
+        } catch (IOException ex) {
+            // This will not be thrown from the Lexer
+            log.log(Level.SEVERE, null, ex);
+        } finally {
+            lexer.setTokenSink(null, 0);
+            if (log.isLoggable(Level.FINEST)) {
+                log.finest(String.format("Relexed %d tokens from %d in %d ms, giving %d tokens\n",
+                        relexed, restartAt, (System.nanoTime() - ts) / 1000000, toks.size()));
+            }
+        }
+        if (result.lexedState == null) {
+            result.lexedTo = text.length();
+            result.lexedLines = lines;
+        }
+        result.changedStart = restartAt;
+        result.changedEnd = relexedEnd;
+        return result;
+    }
+
+    /**
+     * Tell whether the lexer can be restarted after the token at ndx: it is
+     * back in its initial state, and the token ends at pos, where the lexer
+     * stopped reading.  Some lexers skip text without putting it in a token,
+     * like the Python lexer does for a quote inside a long string.
+     */
+    private static boolean isRestartable(TokenList toks, int ndx, LexerState state,
+            int pos) {
+        return state.isInitial() && toks.getEnd(ndx) == pos;
+    }
+
+    /**
+     * Throws CancellationException if forVersion is not -1 and the document
+     * changed from it.  This is only checked every few tokens.
+     */
+    private void checkVersion(int forVersion, int count) {
+        if (forVersion >= 0 && (count & 0xFF) == 0 && version != forVersion) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Add the token at ndx to the text index of toks if its type is indexed.
+     */
+    private static void indexToken(TokenList toks, int ndx, ParseText text,
+            Set<TokenType> indexed) {
+        if (indexed.contains(toks.getType(ndx))) {
+            toks.setTextHash(ndx, text.hash(toks.getStart(ndx), toks.getLength(ndx)));
+        }
+    }
+
+    /**
+     * Lexers add their tokens to the sink.  This adds the token yylex
+     * returned to the list, in case the lexer does not use the sink.
+     */
+    private static void addToken(TokenList toks, Token t, int offset) {
+        if (t != DefaultLexer.SINK_TOKEN) {
+            toks.add(t.type, t.start + offset, t.length, t.pairValue);
+        }
+    }
+
+    /**
+     * Start parsing the dirty text with the ParseScheduler.  Any parse still
+     * waiting or running for an older version of the document is dropped.
+     */
+    private void parseInBackground() {
+        final int forVersion = version;
+        final ParseResult old = parsed;
+        final boolean inc = incremental;
+        final int s = dirtyStart;
+        final int e = dirtyEnd;
+        final int d = dirtyDelta;
+        final int stop = lazyStop();
+        if (old != null) {
+            // the parser thread copies the tokens, so their pairs must not
+            // be found on this thread while it does
+            old.tokens.ensurePairs();
+        }
+        parsePending = true;
+        ParseScheduler.getDefault().schedule(this, new Runnable() {
+
+            @Override
+            public void run() {
+                Lexer bg;
+                synchronized (backgroundLock) {
+                    bg = backgroundLexer;
+                    if (bg == null) {
+                        // background parsing was turned off
+                        return;
+                    }
+                    backgroundBusy = true;
+                }
+                try {
+                    parseInBackground(bg, forVersion, old, inc, s, e, d, stop);
+                } finally {
+                    synchronized (backgroundLock) {
+                        backgroundBusy = false;
+                        if (bg != backgroundLexer) {
+                            LexerPool.forClass(bg.getClass()).release(bg);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs on a parser thread.  Lex a copy of the document, and if the
+     * document is still the same when done, use the result on the EDT.
+     */
+    private void parseInBackground(Lexer lexer, final int forVersion, ParseResult old,
+            boolean inc, int start, int end, int delta, int stopAt) {
+        ParseText text;
+        readLock();
+        try {
+            if (version != forVersion) {
+                return;
+            }
+            text = new TextSnapshot();
+        } catch (BadLocationException ex) {
+            log.log(Level.SEVERE, null, ex);
+            return;
+        } finally {
+            readUnlock();
+        }
+        try {
+            final ParseResult result;
+            if (!inc || old == null || old.tokens.isEmpty() ||
+                    !(lexer instanceof RestartableLexer)) {
+                result = parse(lexer, text, stopAt, forVersion);
+                findChanged(old, result, delta, text.length());
+            } else {
+                result = parse((RestartableLexer) lexer, text, old, start, end,
+                        delta, forVersion);
+            }
+            SwingUtilities.invokeLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (version == forVersion) {
+                        setParsed(result);
+                        dirtyStart = -1;
+                        parsePending = false;
+                        // let the views know they need to paint the new tokens
+                        fireTokensChanged();
+                    }
+                }
+            });
+        } catch (CancellationException ex) {
+            // the document changed, and a parse for the new version is queued
+        }
+    }
+
+    @Override
+    protected void fireChangedUpdate(DocumentEvent e) {
+        changed(e.getOffset(), e.getOffset() + e.getLength(), 0);
+        super.fireChangedUpdate(e);
+    }
+
+    @Override
+    protected void fireInsertUpdate(DocumentEvent e) {
+        changed(e.getOffset(), e.getOffset() + e.getLength(), e.getLength());
+        super.fireInsertUpdate(e);
+    }
+
+    @Override
+    protected void fireRemoveUpdate(DocumentEvent e) {
+        changed(e.getOffset(), e.getOffset(), -e.getLength());
+        super.fireRemoveUpdate(e);
+    }
+
+    /**
+     * Replace is a remove followed by an insert, so it is done in a batch to
+     * parse the document once.
+     */
+    @Override
+    public void replace(int offset, int length, String text, AttributeSet attrs)
+            throws BadLocationException {
+        beginBatch();
+        try {
+            super.replace(offset, length, text, attrs);
+        } finally {
+            endBatch();
+        }
+    }
+
+    /**
+     * Start a batch of changes.  The tokens are not updated for the changes
+     * made until the matching endBatch, and then they are updated once for
+     * all of them.  Until then, the tokens of changed text are not returned.
+     * Batches can be nested, and must be ended on the same thread (normally
+     * the EDT) as they are started.
+     */
+    public void beginBatch() {
+        batchDepth++;
+    }
+
+    /**
+     * End a batch of changes started by beginBatch.  If this is the
+     * outermost batch, the tokens are updated for all the changes in it.
+     */
+    public void endBatch() {
+        if (batchDepth > 0 && --batchDepth == 0 && dirtyStart >= 0) {
+            parseDirty(true);
+        }
+    }
+
+    /**
+     * Run the given changes to this document as one batch, so the document
+     * is parsed only once when they are all done.
+     * @param changes
+     */
+    public void runBatch(Runnable changes) {
+        beginBatch();
+        try {
+            changes.run();
+        } finally {
+            endBatch();
+        }
+    }
+
+    /**
+     * Turn incremental parsing on or off.  When on, only the part of the
+     * document around each change is lexed again, instead of the whole
+     * document.  Where the lexer read ahead past the end of a token, as for
+     * a comment that is not closed yet, it is restarted before that token
+     * when the text it read changes.
+     * This needs a RestartableLexer.  With other Lexers, the whole document
+     * is lexed again after each change.
+     * @param incremental
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * @return true if the document is parsed incrementally
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Turn background parsing on or off.  When on, changes do not wait for
+     * the lexer: the document is lexed on a thread of the ParseScheduler,
+     * which parses the documents of shown editors first, and the tokens
+     * are replaced on the EDT when done.  Until then the tokens of the
+     * previous version are used, and the changed text has no tokens, so it
+     * is painted in the DEFAULT style.
+     * This needs a second Lexer, which is borrowed from the LexerPool of the
+     * Lexer class, and given back when background parsing is turned off.
+     * If it cannot be created, the document is parsed on the EDT.
+     * @param background
+     */
+    public void setBackgroundParse(boolean background) {
+        if (background && lexer != null) {
+            synchronized (backgroundLock) {
+                if (backgroundLexer == null) {
+                    try {
+                        backgroundLexer = LexerPool.forClass(lexer.getClass()).borrow();
+                    } catch (IllegalStateException ex) {
+                        log.log(Level.SEVERE, "Cannot create Lexer for background parsing", ex);
+                        return;
+                    }
+                }
+            }
+        }
+        this.background = background;
+        if (background) {
+            return;
+        }
+        if (dirtyStart >= 0) {
+            // drop the pending parse, and parse on this thread.  The parser
+            // thread may still be copying the tokens, so they are not
+            // updated in place
+            version = (version + 1) & Integer.MAX_VALUE;
+            ParseScheduler.getDefault().cancel(this);
+            parsePending = false;
+            if (parsed != null) {
+                parsed = parsed.copy();
+                tokens = parsed.tokens;
+            }
+            if (batchDepth == 0) {
+                parseDirty(true);
+            }
+        }
+        synchronized (backgroundLock) {
+            // a parser thread still using it gives it back when done
+            if (backgroundLexer != null && !backgroundBusy) {
+                LexerPool.forClass(backgroundLexer.getClass()).release(backgroundLexer);
+            }
+            backgroundLexer = null;
+        }
+    }
+
+    /**
+     * @return true if the document is parsed on a background thread
+     */
+    public boolean isBackgroundParse() {
+        return background;
+    }
+
+    /**
+     * Lex the whole document again, as when the Lexer or its settings
+     * changed.  In background mode this only schedules the parse, so many
+     * documents can be reparsed without waiting for each.
+     */
+    public void reparse() {
+        int length = getLength();
+        if (dirtyStart < 0) {
+            dirtyDelta = 0;
+        }
+        dirtyStart = 0;
+        dirtyEnd = length;
+        version = (version + 1) & Integer.MAX_VALUE;
+        changedStart = -1;
+        if (batchDepth == 0) {
+            parseDirty(true);
+        }
+    }
+
+    /**
+     * Turn lazy parsing on or off.  When on, a parse only lexes the start
+     * of the document, and the rest is lexed in blocks when its tokens are
+     * asked for, resuming from where the lexer stopped.  Lexers that are not
+     * a RestartableLexer cannot resume, so they lex all of it.  So views that only
+     * paint the visible lines of a large document never have all of it
+     * lexed.  Methods that work on the tokens of the whole document, like
+     * getSameTokens, only see the lexed tokens, unless ensureParsed is
+     * called for the whole document first.
+     * Turning it off lexes the rest of the document.  In background mode the
+     * whole document is lexed again by the ParseScheduler instead.
+     * @param lazy
+     */
+    public void setLazyParse(boolean lazy) {
+        this.lazy = lazy;
+        if (lazy) {
+            return;
+        }
+        if (background && parsed != null && parsed.lexedState != null) {
+            reparse();
+        } else {
+            ensureParsed(getLength());
+        }
+    }
+
+    /**
+     * @return true if the document is parsed lazily
+     */
+    public boolean isLazyParse() {
+        return lazy;
+    }
+
+    /**
+     * Turn parallel parsing on or off.  When on, a full parse of a long text
+     * splits it in chunks at line starts, and lexes them on a thread for
+     * each processor, each starting in the initial state of the Lexer.  The
+     * chunks are joined where the tokens of one agree with the next, and the
+     * text is lexed again where they do not, like after a chunk start inside
+     * a comment.  The other Lexers are taken from the LexerPool of the
+     * Lexer class of this document.  Lazy parses are not parallel, and
+     * neither are the parses with a Lexer that is not a RestartableLexer.
+     * @param parallel
+     */
+    public void setParallelParse(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * @return true if full parses of long texts are done in parallel
+     */
+    public boolean isParallelParse() {
+        return parallel;
+    }
+
+    /**
+     * Make sure the tokens up to end are lexed, if the document was parsed
+     * lazily.  The text after the lexed tokens is lexed in blocks, up to
+     * the block that end is in.  Nothing is done while the tokens are out of
+     * date, because of a pending background parse or an open batch.
+     * The tokens are always lexed up to the positions asked for by
+     * getTokens, getTokenCursor, getTokenAt and tokenizeLines.
+     * @param end
+     */
+    public void ensureParsed(int end) {
+        if (lexer == null || batchDepth > 0) {
+            return;
+        }
+        if (parsed == null && dirtyStart >= 0 && !parsePending) {
+            // the text the document was created with
+            parseDirty(false);
+        }
+        if (parsed == null || parsed.lexedState == null || dirtyStart >= 0 ||
+                end <= parsed.lexedTo) {
+            return;
+        }
+        int length = getLength();
+        int stopAt = (int) Math.min(length, (end / LAZY_BLOCK + 1L) * LAZY_BLOCK);
+        try {
+            lexMore(parsed, new DocumentText(), stopAt);
+        } catch (RuntimeException ex) {
+            setParsed(parseAfterFailure(ex));
+        }
+    }
+
+    /**
+     * Lex the text after the tokens of a lazy parse result, up to the first
+     * token that ends at or after stopAt.  The tokens and checkpoints are
+     * added to the result.
+     */
+    private void lexMore(ParseResult result, ParseText text, int stopAt) {
+        // only a RestartableLexer stops before the end of the text
+        RestartableLexer lexer = (RestartableLexer) this.lexer;
+        TokenList toks = result.tokens;
+        int from = result.lexedTo;
+        int lines = text.lineCount();
+        LineCheckpoints checkpoints = new LineCheckpoints(text, result.lineLeads,
+                result.lineStates, result.lexedLines, from);
+        checkpoints.state = result.lexedState;
+        result.lexedState = null;
+        long ts = System.nanoTime();
+        toks.moveGap(toks.size());
+        int count = toks.size();
+        lexer.setTokenSink(toks, from);
+        try {
+            LookaheadReader reader = new LookaheadReader(text.reader(from), from);
+            lexer.yyreset(reader);
+            lexer.restoreState(checkpoints.state);
+            Token t;
+            while ((t = lexer.yylex()) != null) {
+                addToken(toks, t, from);
+                int last = toks.size() - 1;
+                LexerState state = lexer.saveState();
+                int pos = from + lexer.yychar() + lexer.yylength();
+                toks.setRestartable(last, isRestartable(toks, last, state, pos));
+                indexToken(toks, last, text, result.indexed);
+                reader.passed(checkpoints.boundary, pos, result.lookaheads);
+                checkpoints.passed(pos, state);
+                if (pos >= stopAt && pos < text.length()) {
+                    checkpoints.stop(result, pos);
+                    break;
+                }
+            }
+            if (result.lexedState == null) {
+                checkpoints.finish(lines);
+                result.lexedTo = text.length();
+                result.lexedLines = lines;
+            }
+        } catch (IOException ex) {
+            // This will not be thrown from the Lexer
+            log.log(Level.SEVERE, null, ex);
+        } finally {
+            lexer.setTokenSink(null, 0);
+            if (log.isLoggable(Level.FINEST)) {
+                log.finest(String.format("Lexed %d tokens from %d in %d ms\n",
+                        toks.size() - count, from, (System.nanoTime() - ts) / 1000000));
+            }
+        }
+    }
+
+    /**
+     * Return the token at ndx of the tokens list as it is in the current
+     * document, or null if its text was changed and not parsed yet.
+     */
+    private Token currentToken(int ndx) {
+        if (dirtyStart < 0 || tokens.getEnd(ndx) <= dirtyStart) {
+            return tokens.getToken(ndx);
+        }
+        if (tokens.getStart(ndx) >= dirtyEnd - dirtyDelta) {
+            return new Token(tokens.getType(ndx), tokens.getStart(ndx) + dirtyDelta,
+                    tokens.getLength(ndx), tokens.getPairValue(ndx));
+        }
+        return null;
+    }
+
+    /**
+     * Map a position in the current document to the tokens list.  Positions
+     * in changed text that is not parsed yet map to the end of the change.
+     */
+    private int toParsed(int pos) {
+        if (dirtyStart < 0 || pos <= dirtyStart) {
+            return pos;
+        }
+        return Math.max(pos, dirtyEnd) - dirtyDelta;
+    }
+
+    /**
+     * The result of a parse: the tokens, and the state needed to update them
+     * incrementally.  While a parser thread may read a result, it is not
+     * changed on the EDT.
+     */
+    static class ParseResult {
+
+        /**
+         * The tokens.  Each is flagged restartable if the lexer was back in
+         * its initial state right after returning it, and had read no text
+         * past its end.  These are the only places the incremental parser
+         * can restart the lexer from.
+         */
+        final TokenList tokens;
+        /**
+         * The lexer checkpoint of each line.  For line i, lineLeads[i] is how
+         * far back from the line start the lexer returned its last token
+         * before the line, and lineStates[i] is the state the lexer was in at
+         * that point.
+         */
+        final int[] lineLeads;
+        final LexerState[] lineStates;
+        /**
+         * All the tokens of these types are in the text index of tokens.
+         */
+        Set<TokenType> indexed;
+        /**
+         * The text whose tokens may not be the same as in the result this
+         * was parsed from.
+         */
+        int changedStart;
+        int changedEnd;
+        /**
+         * The tokens cover the text up to lexedTo, where the lexer was in
+         * lexedState, and the lines before lexedLines have checkpoints.
+         * lexedState is null if all of the text was lexed.
+         */
+        int lexedTo;
+        LexerState lexedState;
+        int lexedLines;
+        /**
+         * Where the lexer read ahead past the end of the tokens.
+         */
+        final Lookaheads lookaheads = new Lookaheads();
+
+        ParseResult(TokenList tokens, int[] lineLeads, LexerState[] lineStates,
+                Set<TokenType> indexed) {
+            this.tokens = tokens;
+            this.lineLeads = lineLeads;
+            this.lineStates = lineStates;
+            this.indexed = indexed;
+        }
+
+        /**
+         * @return a copy of this result, that can be changed without
+         * changing this one
+         */
+        ParseResult copy() {
+            ParseResult copy = new ParseResult(tokens.copy(), lineLeads.clone(),
+                    lineStates.clone(), indexed);
+            copy.changedStart = changedStart;
+            copy.changedEnd = changedEnd;
+            copy.lexedTo = lexedTo;
+            copy.lexedState = lexedState;
+            copy.lexedLines = lexedLines;
+            copy.lookaheads.addAll(lookaheads, 0, 0);
+            return copy;
+        }
+    }
+
+    /**
+     * Where the lexer read ahead past the end of the token it returned.
+     * Entry i records that lexing on from starts[i], the end of a token, the
+     * lexer read the text up to ends[i] before it returned the next token.
+     * The entries are in the order of their starts.
+     */
+    static class Lookaheads {
+
+        private int[] starts = new int[4];
+        private int[] ends = new int[4];
+        private int size;
+
+        void add(int start, int end) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+        }
+
+        /**
+         * @return true if the lexer read up to pos from any start before it
+         */
+        boolean reaches(int pos) {
+            for (int i = 0; i < size && starts[i] < pos; i++) {
+                if (ends[i] >= pos) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the first start before limit that the lexer read up to
+         * limit from, or limit
+         */
+        int restartBefore(int limit) {
+            for (int i = 0; i < size && starts[i] < limit; i++) {
+                if (ends[i] >= limit) {
+                    return starts[i];
+                }
+            }
+            return limit;
+        }
+
+        /**
+         * Add the entries of from that start at or after start, moved by
+         * delta.  The lexer may have looked at the text it read for an
+         * earlier entry again for the tokens after start, without asking for
+         * more, so the furthest such text is added as read from start.
+         */
+        void addAll(Lookaheads from, int start, int delta) {
+            int read = start;
+            int i = 0;
+            for (; i < from.size && from.starts[i] < start; i++) {
+                read = Math.max(read, from.ends[i]);
+            }
+            if (read > start) {
+                add(start + delta, read + delta);
+            }
+            for (; i < from.size; i++) {
+                add(from.starts[i] + delta, from.ends[i] + delta);
+            }
+        }
+
+        /**
+         * Add the entries of from that start before end.
+         */
+        void addBefore(Lookaheads from, int end) {
+            for (int i = 0; i < from.size && from.starts[i] < end; i++) {
+                add(from.starts[i], from.ends[i]);
+            }
+        }
+    }
+
+    /**
+     * A Reader that notes where the lexer reading it asked for more text.
+     * The text is given out up to the end of a line at a time, so the lexer
+     * has looked at all of the lines before the one it asks for.
+     */
+    private static class LookaheadReader extends Reader {
+
+        private final Reader in;
+        private final char[] buf = new char[1024];
+        private int bufPos;
+        private int bufEnd;
+        // the text position of the next char, and where it was when the
+        // lexer last asked for more, or -1 if not since the last token
+        private int pos;
+        private int requested = -1;
+
+        LookaheadReader(Reader in, int start) {
+            this.in = in;
+            this.pos = start;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            requested = pos;
+            if (bufPos == bufEnd) {
+                int n = in.read(buf, 0, buf.length);
+                if (n <= 0) {
+                    return n;
+                }
+                bufPos = 0;
+                bufEnd = n;
+            }
+            int count = 0;
+            while (count < len && bufPos < bufEnd) {
+                char c = buf[bufPos++];
+                cbuf[off + count++] = c;
+                if (c == '\n') {
+                    break;
+                }
+            }
+            pos += count;
+            return count;
+        }
+
+        /**
+         * The lexer returned a token ending at end, after lexing on from
+         * boundary.  If it read ahead past end for it, that is added to
+         * lookaheads.
+         */
+        void passed(int boundary, int end, Lookaheads lookaheads) {
+            if (requested > end) {
+                lookaheads.add(boundary, requested);
+            }
+            requested = -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * The text a parse reads, and where its lines start.
+     */
+    private static abstract class ParseText {
+
+        abstract int length();
+
+        abstract Reader reader(int pos);
+
+        abstract int lineCount();
+
+        abstract int lineStart(int line);
+
+        abstract int lineOf(int pos);
+
+        /**
+         * @return the hash of the text between start and start + length
+         */
+        abstract int hash(int start, int length);
+
+        /**
+         * @return a ParseText of the same text that another thread can read
+         * at the same time as this one
+         */
+        ParseText forWorker() {
+            return this;
+        }
+    }
+
+    /**
+     * Hash the given chars the same way String.hashCode does.
+     */
+    private static int hash(char[] chars, int offset, int count) {
+        int h = 0;
+        for (int i = offset; i < offset + count; i++) {
+            h = 31 * h + chars[i];
+        }
+        return h;
+    }
+
+    /**
+     * The text of this document.  It must not change while it is parsed.
+     */
+    private class DocumentText extends ParseText {
+
+        final Element root = getDefaultRootElement();
+        final Segment seg = new Segment();
+
+        @Override
+        int length() {
+            return getLength();
+        }
+
+        @Override
+        Reader reader(int pos) {
+            return new DocumentReader(pos);
+        }
+
+        @Override
+        int lineCount() {
+            return root.getElementCount();
+        }
+
+        @Override
+        int lineStart(int line) {
+            return root.getElement(line).getStartOffset();
+        }
+
+        @Override
+        int lineOf(int pos) {
+            return root.getElementIndex(pos);
+        }
+
+        @Override
+        ParseText forWorker() {
+            return new DocumentText();
+        }
+
+        @Override
+        int hash(int start, int length) {
+            try {
+                getText(start, length, seg);
+            } catch (BadLocationException ex) {
+                log.log(Level.SEVERE, null, ex);
+                return 0;
+            }
+            return SyntaxDocument.hash(seg.array, seg.offset, seg.count);
+        }
+    }
+
+    /**
+     * A copy of the text and lines of this document, that can be parsed
+     * while the document changes.  It must be created with the read lock.
+     */
+    private class TextSnapshot extends ParseText {
 
-    public SyntaxDocument(Lexer lexer) {
-        super();
-        putProperty(PlainDocument.tabSizeAttribute, 4);
-        this.lexer = lexer;
-        // Listen for undo and redo events
-        addUndoableEditListener(new UndoableEditListener() {
+        final char[] text;
+        final int[] lineStarts;
 
-            @Override
-            public void undoableEditHappened(UndoableEditEvent evt) {
-                if (evt.getEdit().isSignificant()) {
-                    undo.addEdit(evt.getEdit());
-                }
+        TextSnapshot() throws BadLocationException {
+            text = new char[getLength()];
+            Segment seg = new Segment();
+            seg.setPartialReturn(true);
+            int pos = 0;
+            while (pos < text.length) {
+                getText(pos, text.length - pos, seg);
+                System.arraycopy(seg.array, seg.offset, text, pos, seg.count);
+                pos += seg.count;
             }
-        });
+            Element root = getDefaultRootElement();
+            lineStarts = new int[root.getElementCount()];
+            for (int i = 0; i < lineStarts.length; i++) {
+                lineStarts[i] = root.getElement(i).getStartOffset();
+            }
+        }
+
+        @Override
+        int length() {
+            return text.length;
+        }
+
+        @Override
+        Reader reader(int pos) {
+            return new CharArrayReader(text, pos, text.length - pos);
+        }
+
+        @Override
+        int lineCount() {
+            return lineStarts.length;
+        }
+
+        @Override
+        int lineStart(int line) {
+            return lineStarts[line];
+        }
+
+        @Override
+        int lineOf(int pos) {
+            int ndx = Arrays.binarySearch(lineStarts, pos);
+            return (ndx >= 0) ? ndx : -ndx - 2;
+        }
+
+        @Override
+        int hash(int start, int length) {
+            return SyntaxDocument.hash(text, start, length);
+        }
     }
 
     /**
-     * Parse the entire document and return list of tokens that do not already
-     * exist in the tokens list.  There may be overlaps, and replacements, 
-     * which we will cleanup later.
-     * @return list of tokens that do not exist in the tokens field 
+     * Records the lexer checkpoint of each line start the lexer passes.  The
+     * lexer reports every position it returned a token at, with its state at
+     * that position, and each line gets the last one before its start.
      */
-    private void parse() {
-        // if we have no lexer, then we must have no tokens...
-        if (lexer == null) {
-            tokens = null;
-            return;
+    private static class LineCheckpoints {
+
+        final ParseText text;
+        final int[] leads;
+        final LexerState[] states;
+        // lines from limit on are not recorded
+        final int limit;
+        // the next line to record, and its start offset
+        int line;
+        int lineStart;
+        // the last position the lexer returned a token at, and its state there
+        int boundary;
+        LexerState state = LexerState.INITIAL;
+
+        LineCheckpoints(ParseText text, int[] leads, LexerState[] states,
+                int line, int boundary) {
+            this(text, leads, states, line, boundary, leads.length);
         }
-        List<Token> toks = new ArrayList<Token>(getLength() / 10);
-        long ts = System.nanoTime();
-        int len = getLength();
+
+        LineCheckpoints(ParseText text, int[] leads, LexerState[] states,
+                int line, int boundary, int limit) {
+            this.text = text;
+            this.leads = leads;
+            this.states = states;
+            this.limit = limit;
+            this.line = line;
+            this.boundary = boundary;
+            this.lineStart = lineStart(line);
+        }
+
+        void passed(int pos, LexerState next) {
+            while (lineStart < pos) {
+                record();
+            }
+            boundary = pos;
+            state = next;
+        }
+
+        /**
+         * Stop at pos, the end of the last token, and record in result that
+         * the text was lexed up to there.
+         */
+        void stop(ParseResult result, int pos) {
+            // a line starting right at pos has the checkpoint it would get
+            // when the lexer passes it
+            while (lineStart <= pos) {
+                record();
+            }
+            result.lexedTo = pos;
+            result.lexedState = state;
+            result.lexedLines = line;
+        }
+
+        void finish(int lines) {
+            while (line < lines) {
+                record();
+            }
+        }
+
+        private void record() {
+            leads[line] = lineStart - boundary;
+            states[line] = state;
+            line++;
+            lineStart = lineStart(line);
+        }
+
+        private int lineStart(int ndx) {
+            return ndx < limit ? text.lineStart(ndx) : Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Tokenize the given lines on their own, without looking at the tokens
+     * list.  The lexer is restarted from the checkpoint of the first line,
+     * so the result is the same as if the whole document was lexed.
+     * @param firstLine first line, zero based
+     * @param lastLine last line, inclusive
+     * @return the tokens that overlap the given lines
+     */
+    public List<Token> tokenizeLines(int firstLine, int lastLine) {
+        List<Token> toks = new ArrayList<Token>();
+        if (lexer == null || firstLine > lastLine) {
+            return toks;
+        }
+        ensureParsed(getDefaultRootElement().getElement(lastLine).getEndOffset());
+        if (parsed == null) {
+            return toks;
+        }
+        readLock();
         try {
-            Segment seg = new Segment();
-            getText(0, getLength(), seg);
-            CharArrayReader reader = new CharArrayReader(seg.array, seg.offset, seg.count);
-            lexer.yyreset(reader);
-            Token token;
-            while ((token = lexer.yylex()) != null) {
-                toks.add(token);
+            Element root = getDefaultRootElement();
+            int start = root.getElement(firstLine).getStartOffset();
+            int end = root.getElement(lastLine).getEndOffset();
+            // checkpoints of lines after a change that is not parsed yet are
+            // out of date, so start from the line of the change.  Lines
+            // after the lexed text have none, so start from the last one.
+            int from = firstLine;
+            if (dirtyStart >= 0 && start > dirtyStart) {
+                from = root.getElementIndex(dirtyStart);
+            }
+            from = Math.min(from, parsed.lexedLines - 1);
+            int pos = 0;
+            if (from >= 0) {
+                pos = root.getElement(from).getStartOffset() - parsed.lineLeads[from];
+            }
+            lexer.yyreset(new DocumentReader(pos));
+            if (lexer instanceof RestartableLexer) {
+                ((RestartableLexer) lexer).restoreState((from >= 0)
+                        ? parsed.lineStates[from] : LexerState.INITIAL);
+            }
+            Token t;
+            while ((t = lexer.yylex()) != null) {
+                if (t.start + pos >= end) {
+                    break;
+                }
+                if (t.start + pos + t.length > start) {
+                    toks.add(new Token(t.type, t.start + pos, t.length, t.pairValue));
+                }
             }
-        } catch (BadLocationException ex) {
-            log.log(Level.SEVERE, null, ex);
         } catch (IOException ex) {
             // This will not be thrown from the Lexer
             log.log(Level.SEVERE, null, ex);
         } finally {
-            if (log.isLoggable(Level.FINEST)) {
-                log.finest(String.format("Parsed %d in %d ms, giving %d tokens\n",
-                        len, (System.nanoTime() - ts) / 1000000, toks.size()));
-            }
-            tokens = toks;
+            readUnlock();
         }
+        return toks;
     }
 
-    @Override
-    protected void fireChangedUpdate(DocumentEvent e) {
-        parse();
-        super.fireChangedUpdate(e);
-    }
+    /**
+     * A Reader for the document text starting at a given position.  It uses
+     * partial return Segments, so no copy of the document text is made,
+     * other than what the lexer reads into its own buffer.
+     */
+    private class DocumentReader extends Reader {
 
-    @Override
-    protected void fireInsertUpdate(DocumentEvent e) {
-        parse();
-        super.fireInsertUpdate(e);
-    }
+        private int pos;
+        private final Segment seg = new Segment();
 
-    @Override
-    protected void fireRemoveUpdate(DocumentEvent e) {
-        parse();
-        super.fireRemoveUpdate(e);
-    }
+        DocumentReader(int start) {
+            this.pos = start;
+            seg.setPartialReturn(true);
+        }
 
-    @Override
-    protected void fireUndoableEditUpdate(UndoableEditEvent e) {
-        parse();
-        super.fireUndoableEditUpdate(e);
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            int avail = getLength() - pos;
+            if (avail <= 0) {
+                return -1;
+            }
+            try {
+                getText(pos, Math.min(len, avail), seg);
+            } catch (BadLocationException ex) {
+                throw new IOException(ex.getMessage());
+            }
+            System.arraycopy(seg.array, seg.offset, cbuf, off, seg.count);
+            pos += seg.count;
+            return seg.count;
+        }
+
+        @Override
+        public void close() {
+        }
     }
 
     /**
@@ -141,95 +1976,33 @@ public class SyntaxDocument extends PlainDocument {
      * This class is used to iterate over tokens between two positions
      * 
      */
-    class TokenIterator implements ListIterator<Token> {
+    class TokenIterator implements Iterator<Token> {
 
-        int start;
-        int end;
-        int ndx = 0;
+        private final TokenCursor cursor;
+        private boolean hasNext;
 
-        @SuppressWarnings("unchecked")
         private TokenIterator(int start, int end) {
-            this.start = start;
-            this.end = end;
-            if (tokens != null && !tokens.isEmpty()) {
-                Token token = new Token(TokenType.COMMENT, start, end - start);
-                ndx = Collections.binarySearch((List) tokens, token);
-                // we will probably not find the exact token...
-                if (ndx < 0) {
-                    // so, start from one before the token where we should be...
-                    // -1 to get the location, and another -1 to go back..
-                    ndx = (-ndx - 1 - 1 < 0) ? 0 : (-ndx - 1 - 1);
-                    Token t = tokens.get(ndx);
-                    // if the prev token does not overlap, then advance one
-                    if (t.end() <= start) {
-                        ndx++;
-                    }
-
-                }
-            }
+            cursor = getTokenCursor(start, end);
+            hasNext = cursor.next();
         }
 
         @Override
         public boolean hasNext() {
-            if (tokens == null) {
-                return false;
-            }
-            if (ndx >= tokens.size()) {
-                return false;
-            }
-            Token t = tokens.get(ndx);
-            if (t.start >= end) {
-                return false;
-            }
-            return true;
+            return hasNext;
         }
 
         @Override
         public Token next() {
-            return tokens.get(ndx++);
-        }
-
-        @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
-        }
-
-        public boolean hasPrevious() {
-            if (tokens == null) {
-                return false;
-            }
-            if (ndx <= 0) {
-                return false;
+            if (!hasNext) {
+                throw new NoSuchElementException();
             }
-            Token t = tokens.get(ndx);
-            if (t.end() <= start) {
-                return false;
-            }
-            return true;
-        }
-
-        @Override
-        public Token previous() {
-            return tokens.get(ndx--);
-        }
-
-        @Override
-        public int nextIndex() {
-            return ndx + 1;
-        }
-
-        @Override
-        public int previousIndex() {
-            return ndx - 1;
-        }
-
-        @Override
-        public void set(Token e) {
-            throw new UnsupportedOperationException();
+            Token t = cursor.getToken();
+            hasNext = cursor.next();
+            return t;
         }
 
         @Override
-        public void add(Token e) {
+        public void remove() {
             throw new UnsupportedOperationException();
         }
     }
@@ -244,6 +2017,19 @@ public class SyntaxDocument extends PlainDocument {
         return new TokenIterator(start, end);
     }
 
+    /**
+     * Return a cursor over the tokens between start and end.  Unlike
+     * getTokens, this does not create a Token object for each token.
+     * The cursor must be used before the document changes.
+     * @param start start position for getting tokens
+     * @param end position for last token
+     * @return cursor for tokens that overlap the range from start to end
+     */
+    public TokenCursor getTokenCursor(int start, int end) {
+        ensureParsed(end);
+        return new TokenCursor(tokens, start, end, dirtyStart, dirtyEnd, dirtyDelta);
+    }
+
     /**
      * Find the token at a given position.  May return null if no token is
      * found (whitespace skipped) or if the position is out of range:
@@ -251,25 +2037,26 @@ public class SyntaxDocument extends PlainDocument {
      * @return
      */
     public Token getTokenAt(int pos) {
+        ensureParsed(pos + 1);
         if (tokens == null || tokens.isEmpty() || pos > getLength()) {
             return null;
         }
-        Token tok = null;
-        Token tKey = new Token(TokenType.DEFAULT, pos, 1);
-        @SuppressWarnings("unchecked")
-        int ndx = Collections.binarySearch((List) tokens, tKey);
-        if (ndx < 0) {
-            // so, start from one before the token where we should be...
-            // -1 to get the location, and another -1 to go back..
-            ndx = (-ndx - 1 - 1 < 0) ? 0 : (-ndx - 1 - 1);
-            Token t = tokens.get(ndx);
-            if ((t.start <= pos) && (pos <= t.end())) {
-                tok = t;
-            }
-        } else {
-            tok = tokens.get(ndx);
+        if (dirtyStart >= 0 && pos > dirtyStart && pos < dirtyEnd) {
+            return null;
+        }
+        int p = toParsed(pos);
+        // The token is looked up as if it was a Token(DEFAULT, p, 1) in a
+        // sorted List: start from the last token that sorts before it.
+        int ndx = tokens.findStarting(p + 1) - 1;
+        if (ndx > 0 && tokens.getStart(ndx) == p && (tokens.getLength(ndx) > 1 ||
+                (tokens.getLength(ndx) == 1 && tokens.getType(ndx).compareTo(TokenType.DEFAULT) > 0))) {
+            ndx--;
         }
-        return tok;
+        ndx = Math.max(ndx, 0);
+        if (tokens.getStart(ndx) <= p && p <= tokens.getEnd(ndx)) {
+            return currentToken(ndx);
+        }
+        return null;
     }
 
     /**
@@ -278,38 +2065,105 @@ public class SyntaxDocument extends PlainDocument {
      * have the negative of t.pairValue.
      * This method properly handles nestings of same pairValues, but overlaps
      * are not checked.
+     * The pairs are found once for all the tokens, so this is a lookup.
      * if The document does not contain a paired
      * @param t
      * @return the other pair's token, or null if nothing is found.
      */
     public Token getPairFor(Token t) {
-        if (t == null || t.pairValue == 0) {
+        if (t == null || t.pairValue == 0 || tokens == null) {
+            return null;
+        }
+        int start = t.start;
+        if (dirtyStart >= 0 && t.start >= dirtyEnd) {
+            start -= dirtyDelta;
+        }
+        int ndx = tokens.findStarting(start);
+        if (ndx >= tokens.size() || tokens.getStart(ndx) != start ||
+                tokens.getLength(ndx) != t.length || tokens.getType(ndx) != t.type) {
             return null;
         }
-        Token p = null;
-        int ndx = tokens.indexOf(t);
-        // w will be similar to a stack. The openners weght is added to it
-        // and the closers are subtracted from it (closers are already negative)
-        int w = t.pairValue;
-        int direction = (t.pairValue > 0) ? 1 : -1;
-        boolean done = false;
-        int v = Math.abs(t.pairValue);
-        while (!done) {
-            ndx += direction;
-            if (ndx < 0 || ndx >= tokens.size()) {
+        int other = tokens.getPair(ndx);
+        // the pair of an opening token may be after the lexed text.  Nothing
+        // more is lexed while a batch is open, so stop when it does not grow
+        while (other < 0 && t.pairValue > 0 && dirtyStart < 0 &&
+                parsed.lexedState != null) {
+            int lexedTo = parsed.lexedTo;
+            ensureParsed((int) Math.min(getLength(), 2L * lexedTo + LAZY_BLOCK));
+            if (parsed.lexedState != null && parsed.lexedTo == lexedTo) {
                 break;
             }
-            Token current = tokens.get(ndx);
-            if (Math.abs(current.pairValue) == v) {
-                w += current.pairValue;
-                if (w == 0) {
-                    p = current;
-                    done = true;
+            other = tokens.getPair(ndx);
+        }
+        return (other < 0) ? null : currentToken(other);
+    }
+
+    /**
+     * Return all the tokens of the given types that have the same text as the
+     * given token, including the token itself.  The text of these tokens is
+     * indexed from now on, so only the tokens with the same text hash are
+     * looked at.
+     * If the document is parsed lazily, only the tokens lexed so far are
+     * looked at.
+     * @param t
+     * @param types
+     * @return the tokens, in no particular order.  Empty if t is null.
+     */
+    public List<Token> getSameTokens(Token t, Set<TokenType> types) {
+        List<Token> same = new ArrayList<Token>();
+        if (t == null || tokens == null) {
+            return same;
+        }
+        if (!indexedTypes.containsAll(types)) {
+            Set<TokenType> all = EnumSet.noneOf(TokenType.class);
+            all.addAll(indexedTypes);
+            all.addAll(types);
+            indexedTypes = all;
+        }
+        // tokens of a pending parse are indexed when it is done
+        if (dirtyStart < 0 && parsed.indexed != indexedTypes) {
+            DocumentText text = new DocumentText();
+            for (int i = 0; i < tokens.size(); i++) {
+                if (!tokens.isIndexed(i)) {
+                    indexToken(tokens, i, text, indexedTypes);
+                }
+            }
+            parsed.indexed = indexedTypes;
+        }
+        try {
+            Segment text = new Segment();
+            Segment other = new Segment();
+            getText(t.start, t.length, text);
+            int h = hash(text.array, text.offset, text.count);
+            for (int i = tokens.findSame(h); i >= 0; i = tokens.nextSame(i)) {
+                if (tokens.getLength(i) != t.length || !types.contains(tokens.getType(i))) {
+                    continue;
+                }
+                Token c = currentToken(i);
+                if (c == null) {
+                    continue;
+                }
+                getText(c.start, c.length, other);
+                if (sameChars(text, other)) {
+                    same.add(c);
                 }
             }
+        } catch (BadLocationException ex) {
+            log.log(Level.SEVERE, null, ex);
         }
+        return same;
+    }
 
-        return p;
+    private static boolean sameChars(Segment a, Segment b) {
+        if (a.count != b.count) {
+            return false;
+        }
+        for (int i = 0; i < a.count; i++) {
+            if (a.array[a.offset + i] != b.array[b.offset + i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -317,8 +2171,12 @@ public class SyntaxDocument extends PlainDocument {
      */
     public void doUndo() {
         if (undo.canUndo()) {
-            undo.undo();
-            parse();
+            beginBatch();
+            try {
+                undo.undo();
+            } finally {
+                endBatch();
+            }
         }
     }
 
@@ -327,8 +2185,12 @@ public class SyntaxDocument extends PlainDocument {
      */
     public void doRedo() {
         if (undo.canRedo()) {
-            undo.redo();
-            parse();
+            beginBatch();
+            try {
+                undo.redo();
+            } finally {
+                endBatch();
+            }
         }
     }
 
@@ -361,17 +2223,11 @@ public class SyntaxDocument extends PlainDocument {
         if (pattern == null || getLength() == 0) {
             return -1;
         }
-        try {
-            Segment segment = new Segment();
-            getText(start, getLength() - start, segment);
-            Matcher m = pattern.matcher(segment);
-            if (m.find()) {
-                // remember that the index is relative to the document, so
-                // always add the start position to it
-                ndx = m.start() + start;
-            }
-        } catch (BadLocationException ex) {
-            log.log(Level.SEVERE, null, ex);
+        Matcher m = getMatcher(pattern, start);
+        if (m != null && m.find()) {
+            // remember that the index is relative to the document, so
+            // always add the start position to it
+            ndx = m.start() + start;
         }
         return ndx;
     }
@@ -404,6 +2260,8 @@ public class SyntaxDocument extends PlainDocument {
      * document starting at offset start and ending at start + length.
      * Note that the matcher will have
      * offset starting from <code>start</code>
+     * The matcher reads the document text in place, through a
+     * DocumentCharSequence, so it must be used before the document changes.
      *
      * @param pattern
      * @param start
@@ -412,18 +2270,84 @@ public class SyntaxDocument extends PlainDocument {
      * location within the document
      */
     public Matcher getMatcher(Pattern pattern, int start, int length) {
-        Matcher matcher = null;
         if (getLength() == 0) {
             return null;
         }
+        if (start < 0 || length < 0 || start + length > getLength()) {
+            BadLocationException ex = new BadLocationException("Invalid range", start);
+            log.log(Level.SEVERE, "Requested offset: " + ex.offsetRequested(), ex);
+            return null;
+        }
+        return pattern.matcher(new DocumentCharSequence(this, start, start + length));
+    }
+
+    /**
+     * Replace all the matches of pattern in the document.  Like
+     * Matcher.replaceAll, the replacement may refer to the groups of the
+     * match with $n.
+     * Each match is replaced by its own remove and insert, from the last
+     * match to the first so the offsets of the others stay the same, and
+     * the text that is not replaced is not touched.  All of it is one batch,
+     * so the document is parsed once, and one undoable edit.
+     * @param pattern
+     * @param replacement
+     * @return the number of matches replaced
+     */
+    public int replaceAll(Pattern pattern, String replacement) {
+        Matcher matcher = getMatcher(pattern);
+        if (matcher == null) {
+            return 0;
+        }
+        // only replacements with group references differ for each match
+        boolean literal = replacement.indexOf('$') < 0 && replacement.indexOf('\\') < 0;
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        List<String> texts = new ArrayList<String>();
+        StringBuffer sb = new StringBuffer();
+        int count = 0;
+        int last = 0;
+        while (matcher.find()) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = matcher.start();
+            ends[count] = matcher.end();
+            count++;
+            if (!literal) {
+                // appendReplacement also appends the text since the last
+                // match, which is skipped
+                sb.setLength(0);
+                matcher.appendReplacement(sb, replacement);
+                texts.add(sb.substring(matcher.start() - last));
+                last = matcher.end();
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        beginBatch();
+        compoundEdit = new CompoundEdit();
         try {
-            Segment seg = new Segment();
-            getText(start, length, seg);
-            matcher = pattern.matcher(seg);
+            for (int i = count - 1; i >= 0; i--) {
+                String text = literal ? replacement : texts.get(i);
+                if (ends[i] > starts[i]) {
+                    remove(starts[i], ends[i] - starts[i]);
+                }
+                if (text.length() > 0) {
+                    insertString(starts[i], text, null);
+                }
+            }
         } catch (BadLocationException ex) {
-            log.log(Level.SEVERE, "Requested offset: " + ex.offsetRequested(), ex);
+            log.log(Level.SEVERE, null, ex);
+        } finally {
+            CompoundEdit edit = compoundEdit;
+            compoundEdit = null;
+            edit.end();
+            undo.addEdit(edit);
+            endBatch();
         }
-        return matcher;
+        return count;
     }
 
     /**
@@ -433,6 +2357,241 @@ public class SyntaxDocument extends PlainDocument {
         undo.discardAllEdits();
     }
 
+    /**
+     * Told about the progress of load.
+     */
+    public interface LoadListener {
+
+        /**
+         * Called after each chunk is read
+         * @param bytes the number of bytes read so far
+         * @param total the number of bytes that will be read, or -1 if that
+         * is not known
+         */
+        void progress(long bytes, long total);
+    }
+
+    /**
+     * Replace the text of this document with the text of the given file.
+     * @param file
+     * @param charset the charset of the text in the file
+     * @param listener told about the progress, may be null
+     * @throws IOException
+     * @see #load(ReadableByteChannel, Charset, long, LoadListener)
+     */
+    public void load(File file, Charset charset, LoadListener listener)
+            throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            load(channel, charset, channel.size(), listener);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Replace the text of this document with the text read from in.  The
+     * bytes are decoded in chunks straight into the content, and line ends
+     * are converted to \n like DefaultEditorKit.read does.
+     *
+     * Unlike inserting the text, no String of the whole text is made, the
+     * undo history is cleared instead of getting an edit, and the listeners
+     * get one insert event when all the text is read, so it is parsed once.
+     * The old text is dropped without a remove event, so that event says
+     * all the lines were replaced, and its length is the new length of the
+     * document.  Listeners that keep offsets should drop them when isLoad
+     * is true for the event, like after a setDocument.  If nothing is read,
+     * a remove event is sent for the old text instead.
+     * The document is write locked while the text is read.
+     *
+     * @param in
+     * @param charset the charset of the text
+     * @param size the number of bytes that will be read, or -1 if it is not
+     * known.  This is only passed to the listener.
+     * @param listener told about the progress, may be null
+     * @throws IOException
+     */
+    public void load(ReadableByteChannel in, Charset charset, long size,
+            LoadListener listener) throws IOException {
+        TextLoader loader = new TextLoader(getContent(), charset);
+        BranchElement root = (BranchElement) getDefaultRootElement();
+        writeLock();
+        Element[] oldLines = new Element[root.getElementCount()];
+        for (int i = 0; i < oldLines.length; i++) {
+            oldLines[i] = root.getElement(i);
+        }
+        // the length of the old text, once it is removed
+        int oldLength = 0;
+        try {
+            int length = getLength();
+            if (length > 0) {
+                // the undo history is cleared below, so the edit is dropped
+                getContent().remove(0, length);
+                oldLength = length;
+                // the tokens are for the old text, and a pending
+                // background parse is dropped by the new version
+                setParsed(null);
+                dirtyStart = -1;
+                version = (version + 1) & Integer.MAX_VALUE;
+            }
+            if (size > 0 && getContent() instanceof LoadableContent) {
+                float chars = size * loader.decoder.averageCharsPerByte();
+                ((LoadableContent) getContent()).reserve(0,
+                        (int) Math.min(chars, Integer.MAX_VALUE / 2));
+            }
+            loader.load(in, size, listener);
+        } catch (BadLocationException ex) {
+            log.log(Level.SEVERE, null, ex);
+        } finally {
+            // whatever was read is in the content, so the lines are updated
+            // for it even if reading failed
+            if (loader.length > 0 || oldLength > 0) {
+                try {
+                    Element[] lines = findLines();
+                    root.replace(0, oldLines.length, lines);
+                    DefaultDocumentEvent e = (loader.length > 0)
+                            ? new LoadEvent(loader.length)
+                            : new DefaultDocumentEvent(0, oldLength, DocumentEvent.EventType.REMOVE);
+                    e.addEdit(new ElementEdit(root, 0, oldLines, lines));
+                    e.end();
+                    if (loader.length > 0) {
+                        fireInsertUpdate(e);
+                    } else {
+                        fireRemoveUpdate(e);
+                    }
+                } catch (BadLocationException ex) {
+                    log.log(Level.SEVERE, null, ex);
+                }
+            }
+            writeUnlock();
+            putProperty(DefaultEditorKit.EndOfLineStringProperty,
+                    loader.getLineSeparator());
+            undo.discardAllEdits();
+        }
+    }
+
+    /**
+     * Tell whether e is the insert event of a load, which replaced all the
+     * text of the document without a remove event.
+     * @param e
+     * @return true if all the text of the document is new
+     */
+    public static boolean isLoad(DocumentEvent e) {
+        return e instanceof LoadEvent;
+    }
+
+    /**
+     * The insert event of load.
+     */
+    private class LoadEvent extends DefaultDocumentEvent {
+
+        LoadEvent(int length) {
+            super(0, length, DocumentEvent.EventType.INSERT);
+        }
+    }
+
+    /**
+     * Decodes text into a content for load.
+     */
+    private static class TextLoader {
+
+        private static final int CHUNK_SIZE = 64 * 1024;
+        private final Content content;
+        final CharsetDecoder decoder;
+        private final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+        // the length of the loaded text
+        int length = 0;
+        // true if the last char was a \r
+        private boolean afterCR = false;
+        private int crlfs = 0;
+        private int crs = 0;
+
+        TextLoader(Content content, Charset charset) {
+            this.content = content;
+            decoder = charset.newDecoder().
+                    onMalformedInput(CodingErrorAction.REPLACE).
+                    onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        void load(ReadableByteChannel in, long size, LoadListener listener)
+                throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocate(CHUNK_SIZE);
+            long read = 0;
+            boolean eof = false;
+            while (!eof) {
+                int n = in.read(bytes);
+                eof = n < 0;
+                read += Math.max(n, 0);
+                bytes.flip();
+                CoderResult result;
+                do {
+                    result = decoder.decode(bytes, chars, eof);
+                    append();
+                } while (result.isOverflow());
+                bytes.compact();
+                if (listener != null && n > 0) {
+                    listener.progress(read, size);
+                }
+            }
+            CoderResult result;
+            do {
+                result = decoder.flush(chars);
+                append();
+            } while (result.isOverflow());
+        }
+
+        /**
+         * Add the decoded chars to the content, with their line ends
+         * converted.
+         */
+        private void append() throws IOException {
+            chars.flip();
+            char[] array = chars.array();
+            int count = 0;
+            for (int i = 0; i < chars.limit(); i++) {
+                char c = array[i];
+                if (c == '\n' && afterCR) {
+                    // the \r was already added as \n
+                    crlfs++;
+                    crs--;
+                    afterCR = false;
+                    continue;
+                }
+                afterCR = (c == '\r');
+                if (afterCR) {
+                    crs++;
+                    c = '\n';
+                }
+                array[count++] = c;
+            }
+            chars.clear();
+            if (count == 0) {
+                return;
+            }
+            try {
+                if (content instanceof LoadableContent) {
+                    ((LoadableContent) content).insert(length, array, count);
+                } else {
+                    content.insertString(length, new String(array, 0, count));
+                }
+            } catch (BadLocationException ex) {
+                throw new IOException(ex.getMessage());
+            }
+            length += count;
+        }
+
+        /**
+         * @return the line separator used the most
+         */
+        String getLineSeparator() {
+            if (crlfs == 0 && crs == 0) {
+                return "\n";
+            }
+            return (crlfs >= crs) ? "\r\n" : "\r";
+        }
+    }
+
     /**
      * Gets the line at given position.  The line returned will NOT include
      * the line terminator '\n'
@@ -23,6 +23,7 @@ import javax.swing.text.Utilities;
 
 public final class SyntaxStyle {
 
+    private static final Color BACKGROUND_COLOR = new Color(0xEEEEEE);
     private Color color;
     private int fontStyle;
 
@@ -107,8 +108,18 @@ public final class SyntaxStyle {
      */
     public int drawText(Segment segment, int x, int y,
             Graphics graphics, TabExpander e, int startOffset) {
-        graphics.setFont(graphics.getFont().deriveFont(getFontStyle()));
-        FontMetrics fontMetrics = graphics.getFontMetrics();
+        Font font = graphics.getFont().deriveFont(getFontStyle());
+        return drawText(segment, x, y, graphics, e, startOffset, font,
+                graphics.getFontMetrics(font));
+    }
+
+    /**
+     * Draw text with the font of this style, that the caller derived
+     * already, and its metrics.
+     */
+    int drawText(Segment segment, int x, int y, Graphics graphics,
+            TabExpander e, int startOffset, Font font, FontMetrics fontMetrics) {
+        graphics.setFont(font);
         int a = fontMetrics.getAscent();
         int h = a + fontMetrics.getDescent();
         int w = Utilities.getTabbedTextWidth(segment, fontMetrics, 0, e, startOffset);
@@ -117,7 +128,7 @@ public final class SyntaxStyle {
         int rW = w + 2;
         int rH = h;
         if ((getFontStyle() & 0x10) != 0) {
-            graphics.setColor(Color.decode("#EEEEEE"));
+            graphics.setColor(BACKGROUND_COLOR);
             graphics.fillRect(rX, rY, rW, rH);
         }
         graphics.setColor(getColor());
@@ -53,6 +53,11 @@ public class SyntaxStyles {
         }
     }
     Map<TokenType, SyntaxStyle> styles;
+    /**
+     * Counts the calls to put, so StyleTables know when to resolve the
+     * styles again.
+     */
+    private int version = 0;
     private static SyntaxStyles instance = createInstance();
     private static final Logger LOG = Logger.getLogger(SyntaxStyles.class.getName());
     
@@ -81,6 +86,11 @@ public class SyntaxStyles {
             styles = new HashMap<TokenType, SyntaxStyle>();
         }
         styles.put(type, style);
+        version++;
+    }
+
+    int getVersion() {
+        return version;
     }
 
     /**
@@ -108,11 +118,8 @@ public class SyntaxStyles {
      * @return
      */
     public SyntaxStyle getStyle(TokenType type) {
-        if (styles.containsKey(type)) {
-            return styles.get(type);
-        } else {
-            return DEFAULT_STYLE;
-        }
+        SyntaxStyle style = styles.get(type);
+        return (style == null) ? DEFAULT_STYLE : style;
     }
 
     /**
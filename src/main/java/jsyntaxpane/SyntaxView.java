@@ -15,17 +15,18 @@ package jsyntaxpane;
 
 import java.awt.Color;
 import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
 import java.awt.Shape;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.text.BadLocationException;
 import javax.swing.text.Element;
+import javax.swing.text.JTextComponent;
 import javax.swing.text.PlainView;
 import javax.swing.text.Segment;
 import javax.swing.text.ViewFactory;
@@ -37,13 +38,23 @@ public class SyntaxView extends PlainView {
     public static final String PROPERTY_RIGHT_MARGIN_COLUMN = "RightMarginColumn";
     public static final String PROPERTY_SINGLE_COLOR_SELECT = "SingleColorSelect";
     public static final String PROPERTY_TEXTAA = "TextAA";
+    public static final String PROPERTY_RENDER_CACHE = "RenderCache";
     
     private static final Logger log = Logger.getLogger(SyntaxView.class.getName());
-    private SyntaxStyle DEFAULT_STYLE = SyntaxStyles.getInstance().getStyle(TokenType.DEFAULT);
+    /**
+     * The styles resolved for the font of the pane.  It is replaced when the
+     * font or the styles change.
+     */
+    private StyleTable styleTable;
+    private final StyleRuns runs = new StyleRuns();
     private final boolean singleColorSelect;
     private final int rightMarginColumn;
     private final Color rightMarginColor;
     private final Object textAAHint;
+    /**
+     * The tiles of drawn lines, or null if lines are always drawn.
+     */
+    private final RenderCache renderCache;
 
     /**
      * Construct a new view using the given configuration and prefix given
@@ -62,6 +73,75 @@ public class SyntaxView extends PlainView {
         String textaa = config.getPrefixProperty(prefix, PROPERTY_TEXTAA,
                 "DEFAULT");
         textAAHint = TEXT_AA_HINT_NAMES.get(textaa);
+        int cacheSize = config.getPrefixInteger(prefix, PROPERTY_RENDER_CACHE, 0);
+        renderCache = (cacheSize > 0) ? new RenderCache(this, cacheSize * 1024L * 1024L) : null;
+    }
+
+    @Override
+    protected void drawLine(int lineIndex, Graphics g, int x, int y) {
+        if (renderCache == null || isSelected(lineIndex) ||
+                !renderCache.drawLine(lineIndex, g, x, y, getStyleTable(g.getFont()),
+                metrics.getHeight(), metrics.getAscent())) {
+            super.drawLine(lineIndex, g, x, y);
+        }
+    }
+
+    /**
+     * @return true if part of the line is drawn in the selected text color
+     */
+    private boolean isSelected(int lineIndex) {
+        JTextComponent host = (JTextComponent) getContainer();
+        int sel0 = host.getSelectionStart();
+        int sel1 = host.getSelectionEnd();
+        if (!singleColorSelect || sel0 == sel1 || !host.getCaret().isSelectionVisible()) {
+            return false;
+        }
+        Element line = getElement().getElement(lineIndex);
+        return sel0 < line.getEndOffset() && sel1 > line.getStartOffset();
+    }
+
+    private StyleTable getStyleTable(Font font) {
+        if (styleTable == null || !styleTable.isFor(font)) {
+            styleTable = new StyleTable(getContainer(), font);
+        }
+        return styleTable;
+    }
+
+    /**
+     * @return the text anti-aliasing hint to draw text with
+     */
+    Object getTextAAHint() {
+        return textAAHint;
+    }
+
+    /**
+     * @param fontMetrics the metrics of the font the text is drawn with
+     * @return the x of the right margin, or 0 if there is none
+     */
+    int getRightMarginX(FontMetrics fontMetrics) {
+        return (rightMarginColumn > 0) ? rightMarginColumn * fontMetrics.charWidth('m') : 0;
+    }
+
+    Color getRightMarginColor() {
+        return rightMarginColor;
+    }
+
+    /**
+     * @return the distance between tab stops, as nextTabStop uses it
+     */
+    int getTabWidth() {
+        return getTabSize() * metrics.charWidth('m');
+    }
+
+    /**
+     * Draw the right margin for the line at y, if needed.
+     */
+    private void drawRightMargin(Graphics graphics, int y) {
+        int m_x = getRightMarginX(graphics.getFontMetrics());
+        if (m_x > 0) {
+            graphics.setColor(rightMarginColor);
+            graphics.drawLine(m_x, y, m_x, y - graphics.getFontMetrics().getHeight());
+        }
     }
 
     @Override
@@ -74,50 +154,19 @@ public class SyntaxView extends PlainView {
         Color saveColor = graphics.getColor();
         SyntaxDocument doc = (SyntaxDocument) getDocument();
         Segment segment = getLineBuffer();
+        StyleTable styles = getStyleTable(saveFont);
         // Draw the right margin first, if needed.  This way the text overalys
         // the margin
-        if (rightMarginColumn > 0) {
-            int m_x = rightMarginColumn * graphics.getFontMetrics().charWidth('m');
-            int h = graphics.getFontMetrics().getHeight();
-            graphics.setColor(rightMarginColor);
-            graphics.drawLine(m_x, y, m_x, y - h);
-        }
+        drawRightMargin(graphics, y);
         try {
-            // Colour the parts
-            Iterator<Token> i = doc.getTokens(p0, p1);
-            int start = p0;
-            while (i.hasNext()) {
-                Token t = i.next();
-                // if there is a gap between the next token start and where we
-                // should be starting (spaces not returned in tokens), then draw
-                // it in the default type
-                if (start < t.start) {
-                    doc.getText(start, t.start - start, segment);
-                    x = DEFAULT_STYLE.drawText(segment, x, y, graphics, this, start);
-                }
-                // t and s are the actual start and length of what we should
-                // put on the screen.  assume these are the whole token....
-                int l = t.length;
-                int s = t.start;
-                // ... unless the token starts before p0:
-                if (s < p0) {
-                    // token is before what is requested. adgust the length and s
-                    l -= (p0 - s);
-                    s = p0;
-                }
-                // if token end (s + l is still the token end pos) is greater 
-                // than p1, then just put up to p1
-                if (s + l > p1) {
-                    l = p1 - s;
-                }
-                doc.getText(s, l, segment);
-                x = SyntaxStyles.getInstance().drawText(segment, x, y, graphics, this, t);
-                start = t.end();
-            }
-            // now for any remaining text not tokenized:
-            if (start < p1) {
-                doc.getText(start, p1 - start, segment);
-                x = DEFAULT_STYLE.drawText(segment, x, y, graphics, this, start);
+            // Colour the parts.  Consecutive tokens and gaps that look the
+            // same are drawn as one run
+            runs.collect(doc, styles, p0, p1);
+            for (int i = 0; i < runs.size(); i++) {
+                int start = runs.getStart(i);
+                doc.getText(start, runs.getEnd(i) - start, segment);
+                x = styles.drawText(segment, x, y, graphics, this,
+                        runs.getType(i), start);
             }
         } catch (BadLocationException ex) {
             System.err.println("Requested: " + ex.offsetRequested());
@@ -133,12 +182,7 @@ public class SyntaxView extends PlainView {
     protected int drawSelectedText(Graphics graphics, int x, int y, int p0, int p1)
             throws BadLocationException {
         if (singleColorSelect) {
-            if (rightMarginColumn > 0) {
-                int m_x = rightMarginColumn * graphics.getFontMetrics().charWidth('m');
-                int h = graphics.getFontMetrics().getHeight();
-                graphics.setColor(rightMarginColor);
-                graphics.drawLine(m_x, y, m_x, y - h);
-            }
+            drawRightMargin(graphics, y);
             return super.drawUnselectedText(graphics, x, y, p0, p1);
         } else {
             return drawUnselectedText(graphics, x, y, p0, p1);
@@ -150,8 +194,19 @@ public class SyntaxView extends PlainView {
             Shape a,
             ViewFactory f) {
         super.updateDamage(changes, a, f);
-        java.awt.Component host = getContainer();
-        host.repaint();
+        if (renderCache != null) {
+            renderCache.changed(changes);
+        }
+        // the change may also change the tokens of the lines after it, like
+        // when a comment is opened.  Only the lines of those are repainted
+        SyntaxDocument doc = (SyntaxDocument) getDocument();
+        if (a != null && doc.changedStart >= 0) {
+            Element map = getElement();
+            int length = doc.getLength();
+            int first = map.getElementIndex(Math.min(doc.changedStart, length));
+            int last = map.getElementIndex(Math.min(doc.changedEnd, length));
+            damageLineRange(first, last, a, getContainer());
+        }
     }
 
     /**
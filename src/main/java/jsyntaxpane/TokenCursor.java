@@ -0,0 +1,108 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane;
+
+/**
+ * Iterates over the tokens of a SyntaxDocument in a range without creating
+ * Token objects.  Call next() to move to the next token, and use the getters
+ * to read it:
+ * <pre>
+ *     TokenCursor c = doc.getTokenCursor(start, end);
+ *     while (c.next()) {
+ *         paint(c.getType(), c.getStart(), c.getLength());
+ *     }
+ * </pre>
+ * Like getTokens, the cursor returns the tokens that overlap the range.
+ *
+ * @author Ayman Al-Sairafi
+ */
+public class TokenCursor {
+
+    private final TokenList tokens;
+    private final int end;
+    // changed text that is not parsed yet, see SyntaxDocument.dirtyStart
+    private final int dirtyStart;
+    private final int dirtyEnd;
+    private final int dirtyDelta;
+    private int ndx;
+    private int current = -1;
+    private int shift;
+
+    TokenCursor(TokenList tokens, int start, int end, int dirtyStart,
+            int dirtyEnd, int dirtyDelta) {
+        this.tokens = tokens;
+        this.end = end;
+        this.dirtyStart = dirtyStart;
+        this.dirtyEnd = dirtyEnd;
+        this.dirtyDelta = dirtyDelta;
+        if (tokens != null) {
+            if (dirtyStart >= 0 && start > dirtyStart) {
+                start = Math.max(start, dirtyEnd) - dirtyDelta;
+            }
+            ndx = tokens.findAfter(start);
+        }
+    }
+
+    /**
+     * Move to the next token.
+     * @return false if there are no more tokens in the range
+     */
+    public boolean next() {
+        if (tokens == null) {
+            return false;
+        }
+        int s = 0;
+        if (dirtyStart >= 0 && ndx < tokens.size() &&
+                tokens.getEnd(ndx) > dirtyStart) {
+            // skip the tokens of changed text, the ones after it are moved
+            if (tokens.getStart(ndx) < dirtyEnd - dirtyDelta) {
+                ndx = tokens.findStarting(dirtyEnd - dirtyDelta);
+            }
+            s = dirtyDelta;
+        }
+        if (ndx >= tokens.size() || tokens.getStart(ndx) + s >= end) {
+            return false;
+        }
+        current = ndx++;
+        shift = s;
+        return true;
+    }
+
+    public TokenType getType() {
+        return tokens.getType(current);
+    }
+
+    public int getStart() {
+        return tokens.getStart(current) + shift;
+    }
+
+    public int getLength() {
+        return tokens.getLength(current);
+    }
+
+    public int getEnd() {
+        return tokens.getEnd(current) + shift;
+    }
+
+    public byte getPairValue() {
+        return tokens.getPairValue(current);
+    }
+
+    /**
+     * @return a new Token object for the current token
+     */
+    public Token getToken() {
+        return new Token(getType(), getStart(), getLength(), getPairValue());
+    }
+}
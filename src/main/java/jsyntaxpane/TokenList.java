@@ -0,0 +1,600 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact list of Tokens.  The tokens are kept in primitive arrays, one
+ * for each field of Token, instead of one object for each Token.  This takes
+ * about a third of the memory of a List of Tokens, and adding to it creates
+ * no objects other than when the arrays grow.
+ * Token objects are only created by getToken, for code that needs them.
+ *
+ * Like the GapContent of Swing documents, the arrays have a gap, and new
+ * tokens are added at the gap.  The starts of the tokens after the gap are
+ * stored relative to a tail shift, so all the tokens after an edit can be
+ * moved by changing only the shift.  Moving the gap to another index costs
+ * the number of tokens it moves over, so edits close to each other are
+ * cheap.
+ *
+ * The list also keeps the index of the other token of each pair (like
+ * matching brackets), found in one pass over the tokens.  The indices of
+ * tokens before the gap are kept from the front of the list, and those after
+ * the gap from the back, so adding tokens at the gap does not change them.
+ * When tokens with a pair value are added or removed, the pairs are found
+ * again the next time one is needed.
+ *
+ * Tokens can also be indexed by a hash of their text.  Tokens with the same
+ * hash are linked in a chain, so all the tokens with some text can be found
+ * without looking at the others.  The links are kept like the pairs, and
+ * tokens are unlinked when they are removed.
+ *
+ * The tokens must be in order, and must not overlap.
+ *
+ * @author Ayman Al-Sairafi
+ */
+public class TokenList {
+
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final byte RESTARTABLE = 1;
+    private int[] starts;
+    private int[] lengths;
+    private byte[] types;
+    private byte[] pairs;
+    private byte[] flags;
+    // the other token of each pair, see encodePair
+    private int[] partners;
+    // true if partners is up to date
+    private boolean pairsValid = true;
+    // text hash of each token, or 0 if it is not indexed, and the links to
+    // the previous and next token with the same hash.  These are null until
+    // the first token is indexed.
+    private int[] hashes;
+    private int[] prevSame;
+    private int[] nextSame;
+    private Map<Integer, Integer> firstSame;
+    // the gap is from gapStart to gapEnd (exclusive) in the arrays
+    private int gapStart;
+    private int gapEnd;
+    // added to the stored start of each token after the gap
+    private int tailShift = 0;
+
+    public TokenList() {
+        this(16);
+    }
+
+    /**
+     * Create an empty list
+     * @param capacity the initial number of tokens the list can hold
+     */
+    public TokenList(int capacity) {
+        capacity = Math.max(capacity, 16);
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        types = new byte[capacity];
+        pairs = new byte[capacity];
+        flags = new byte[capacity];
+        partners = new int[capacity];
+        gapStart = 0;
+        gapEnd = capacity;
+    }
+
+    /**
+     * @return the number of tokens in the list
+     */
+    public int size() {
+        return starts.length - (gapEnd - gapStart);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getStart(int ndx) {
+        if (ndx < gapStart) {
+            return starts[ndx];
+        }
+        return starts[ndx + gapEnd - gapStart] + tailShift;
+    }
+
+    public int getLength(int ndx) {
+        return lengths[index(ndx)];
+    }
+
+    public int getEnd(int ndx) {
+        return getStart(ndx) + getLength(ndx);
+    }
+
+    public TokenType getType(int ndx) {
+        return TYPES[types[index(ndx)]];
+    }
+
+    public byte getPairValue(int ndx) {
+        return pairs[index(ndx)];
+    }
+
+    /**
+     * @param ndx
+     * @return true if the Lexer was in its initial state after the token,
+     * so it can be restarted right after it.
+     */
+    public boolean isRestartable(int ndx) {
+        return (flags[index(ndx)] & RESTARTABLE) != 0;
+    }
+
+    /**
+     * Return the index of the other token of the pair the token at ndx is
+     * part of.  The pair is found as in SyntaxDocument.getPairFor: nested
+     * pairs of the same value are skipped, and other pair values are
+     * ignored.
+     * @param ndx
+     * @return index of the other token, or -1 if there is none
+     */
+    public int getPair(int ndx) {
+        if (!pairsValid) {
+            findPairs();
+        }
+        return decodeIndex(partners[index(ndx)]);
+    }
+
+    /**
+     * Create a Token object for the token at ndx.  The Token is not kept by
+     * the list.
+     * @param ndx
+     * @return new Token
+     */
+    public Token getToken(int ndx) {
+        return new Token(getType(ndx), getStart(ndx), getLength(ndx), getPairValue(ndx));
+    }
+
+    /**
+     * Add a token at the gap.  The gap is at the end of the list, unless it
+     * was moved with moveGap.
+     * @param type
+     * @param start
+     * @param length
+     * @param pairValue
+     */
+    public void add(TokenType type, int start, int length, byte pairValue) {
+        if (gapStart == gapEnd) {
+            grow(1);
+        }
+        starts[gapStart] = start;
+        lengths[gapStart] = length;
+        types[gapStart] = (byte) type.ordinal();
+        pairs[gapStart] = pairValue;
+        flags[gapStart] = 0;
+        partners[gapStart] = 0;
+        if (hashes != null) {
+            hashes[gapStart] = 0;
+        }
+        if (pairValue != 0) {
+            pairsValid = false;
+        }
+        gapStart++;
+    }
+
+    /**
+     * Add the tokens of src from index from to index to at the gap, with
+     * their text index entries.  The gap of src must be at its end.
+     */
+    void addAll(TokenList src, int from, int to) {
+        int count = to - from;
+        if (gapEnd - gapStart < count) {
+            grow(count);
+        }
+        System.arraycopy(src.starts, from, starts, gapStart, count);
+        System.arraycopy(src.lengths, from, lengths, gapStart, count);
+        System.arraycopy(src.types, from, types, gapStart, count);
+        System.arraycopy(src.pairs, from, pairs, gapStart, count);
+        System.arraycopy(src.flags, from, flags, gapStart, count);
+        Arrays.fill(partners, gapStart, gapStart + count, 0);
+        if (hashes != null) {
+            Arrays.fill(hashes, gapStart, gapStart + count, 0);
+        }
+        int first = gapStart;
+        gapStart += count;
+        if (count > 0) {
+            pairsValid = false;
+        }
+        for (int i = 0; src.hashes != null && i < count; i++) {
+            if (src.hashes[from + i] != 0) {
+                setTextHash(first + i, src.hashes[from + i]);
+            }
+        }
+    }
+
+    void setRestartable(int ndx, boolean restartable) {
+        flags[index(ndx)] = restartable ? RESTARTABLE : 0;
+    }
+
+    /**
+     * Add the token at ndx to the text index.  It must not be indexed yet.
+     * @param ndx
+     * @param hash hash of the token text, like String.hashCode
+     */
+    void setTextHash(int ndx, int hash) {
+        if (hashes == null) {
+            hashes = new int[starts.length];
+            prevSame = new int[starts.length];
+            nextSame = new int[starts.length];
+            firstSame = new HashMap<Integer, Integer>();
+        }
+        // zero means not indexed
+        if (hash == 0) {
+            hash = 1;
+        }
+        int p = index(ndx);
+        hashes[p] = hash;
+        prevSame[p] = 0;
+        Integer first = firstSame.get(hash);
+        nextSame[p] = (first == null) ? 0 : first;
+        if (first != null) {
+            prevSame[index(decodeIndex(first))] = encodeIndex(ndx);
+        }
+        firstSame.put(hash, encodeIndex(ndx));
+    }
+
+    /**
+     * @param ndx
+     * @return true if the token at ndx is in the text index
+     */
+    boolean isIndexed(int ndx) {
+        return hashes != null && hashes[index(ndx)] != 0;
+    }
+
+    /**
+     * Return the first token in the text index with the given hash.  Tokens
+     * with other text may have the same hash, so the text must be checked.
+     * @param hash
+     * @return index of the token, or -1 if there is none
+     */
+    int findSame(int hash) {
+        if (hashes == null) {
+            return -1;
+        }
+        Integer first = firstSame.get((hash == 0) ? 1 : hash);
+        return (first == null) ? -1 : decodeIndex(first);
+    }
+
+    /**
+     * @param ndx
+     * @return index of the next token with the same text hash, or -1
+     */
+    int nextSame(int ndx) {
+        return decodeIndex(nextSame[index(ndx)]);
+    }
+
+    private void unlinkSame(int ndx) {
+        int p = index(ndx);
+        int prev = decodeIndex(prevSame[p]);
+        int next = decodeIndex(nextSame[p]);
+        if (prev >= 0) {
+            nextSame[index(prev)] = encodeIndex(next);
+        } else if (next >= 0) {
+            firstSame.put(hashes[p], encodeIndex(next));
+        } else {
+            firstSame.remove(hashes[p]);
+        }
+        if (next >= 0) {
+            prevSame[index(next)] = encodeIndex(prev);
+        }
+        hashes[p] = 0;
+    }
+
+    /**
+     * @return the index of the first token after the gap, which is also the
+     * number of tokens before it.
+     */
+    int getGapIndex() {
+        return gapStart;
+    }
+
+    /**
+     * Move the gap so it is before the token at ndx
+     * @param ndx
+     */
+    void moveGap(int ndx) {
+        int gap = gapEnd - gapStart;
+        // the moved tokens change sides, so they and their partners need
+        // their pairs encoded again
+        int first = Math.min(ndx, gapStart);
+        int count = Math.abs(ndx - gapStart);
+        int[] moved = null;
+        if (pairsValid && count > 0) {
+            moved = new int[count];
+            for (int i = 0; i < count; i++) {
+                moved[i] = decodeIndex(partners[index(first + i)]);
+            }
+        }
+        int[] prevs = null;
+        int[] nexts = null;
+        if (hashes != null && count > 0) {
+            prevs = new int[count];
+            nexts = new int[count];
+            for (int i = 0; i < count; i++) {
+                prevs[i] = decodeIndex(prevSame[index(first + i)]);
+                nexts[i] = decodeIndex(nextSame[index(first + i)]);
+            }
+        }
+        if (ndx < gapStart) {
+            move(ndx, gapEnd - count, count);
+            for (int i = gapEnd - count; i < gapEnd; i++) {
+                starts[i] -= tailShift;
+            }
+            gapStart = ndx;
+            gapEnd -= count;
+        } else if (ndx > gapStart) {
+            move(gapEnd, gapStart, count);
+            for (int i = gapStart; i < ndx; i++) {
+                starts[i] += tailShift;
+            }
+            gapStart = ndx;
+            gapEnd = ndx + gap;
+        }
+        if (moved != null) {
+            for (int i = 0; i < moved.length; i++) {
+                if (moved[i] >= 0) {
+                    partners[index(first + i)] = encodeIndex(moved[i]);
+                    partners[index(moved[i])] = encodeIndex(first + i);
+                }
+            }
+        }
+        if (prevs != null) {
+            for (int i = 0; i < count; i++) {
+                int p = index(first + i);
+                if (hashes[p] == 0) {
+                    continue;
+                }
+                prevSame[p] = encodeIndex(prevs[i]);
+                nextSame[p] = encodeIndex(nexts[i]);
+                if (prevs[i] >= 0) {
+                    nextSame[index(prevs[i])] = encodeIndex(first + i);
+                } else {
+                    firstSame.put(hashes[p], encodeIndex(first + i));
+                }
+                if (nexts[i] >= 0) {
+                    prevSame[index(nexts[i])] = encodeIndex(first + i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove tokens right after the gap
+     * @param count number of tokens to remove
+     */
+    void removeAfterGap(int count) {
+        for (int i = gapEnd; pairsValid && i < gapEnd + count; i++) {
+            if (pairs[i] != 0) {
+                pairsValid = false;
+            }
+        }
+        for (int i = gapEnd; hashes != null && i < gapEnd + count; i++) {
+            if (hashes[i] != 0) {
+                unlinkSame(gapStart + i - gapEnd);
+            }
+        }
+        gapEnd += count;
+    }
+
+    /**
+     * Move the start of all the tokens after the gap by delta
+     * @param delta
+     */
+    void shiftAfterGap(int delta) {
+        tailShift += delta;
+    }
+
+    /**
+     * Check if the token at ndx of this list is the same as the token at
+     * srcNdx of the other list moved by shift.
+     */
+    boolean isSame(int ndx, TokenList src, int srcNdx, int shift) {
+        return getStart(ndx) == src.getStart(srcNdx) + shift &&
+                getLength(ndx) == src.getLength(srcNdx) &&
+                types[index(ndx)] == src.types[src.index(srcNdx)] &&
+                getPairValue(ndx) == src.getPairValue(srcNdx);
+    }
+
+    /**
+     * @return a copy of this list, with the gap at the end
+     */
+    TokenList copy() {
+        TokenList copy = new TokenList(size() + 16);
+        copy.sameCapacity(this);
+        int tail = starts.length - gapEnd;
+        copy.move(this, 0, 0, gapStart);
+        copy.move(this, gapEnd, gapStart, tail);
+        for (int i = gapStart; i < gapStart + tail; i++) {
+            copy.starts[i] += tailShift;
+        }
+        copy.gapStart = gapStart + tail;
+        copy.pairsValid = pairsValid;
+        if (pairsValid) {
+            // all the tokens are before the gap of the copy
+            for (int i = 0; i < copy.gapStart; i++) {
+                copy.partners[i] = decodeIndex(partners[index(i)]) + 1;
+            }
+        }
+        if (hashes != null) {
+            for (int i = 0; i < copy.gapStart; i++) {
+                copy.prevSame[i] = decodeIndex(prevSame[index(i)]) + 1;
+                copy.nextSame[i] = decodeIndex(nextSame[index(i)]) + 1;
+            }
+            for (Map.Entry<Integer, Integer> e : firstSame.entrySet()) {
+                copy.firstSame.put(e.getKey(), decodeIndex(e.getValue()) + 1);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Return the index of the first token that ends after pos.  This is the
+     * token at pos, if there is one.
+     * @param pos
+     * @return index, or size() if all tokens end at or before pos
+     */
+    public int findAfter(int pos) {
+        int lo = 0;
+        int hi = size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getEnd(mid) <= pos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Return the index of the first token that starts at or after pos.
+     * @param pos
+     * @return index, or size() if all tokens start before pos
+     */
+    public int findStarting(int pos) {
+        int lo = 0;
+        int hi = size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getStart(mid) < pos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Find the pairs now, if they are not up to date.
+     */
+    void ensurePairs() {
+        if (!pairsValid) {
+            findPairs();
+        }
+    }
+
+    /**
+     * Find all pairs in one pass, with a stack of open tokens for each
+     * pair value.
+     */
+    private void findPairs() {
+        int size = size();
+        int[] open = new int[Byte.MAX_VALUE + 2];
+        Arrays.fill(open, -1);
+        int[] below = new int[size];
+        for (int i = 0; i < size; i++) {
+            int p = index(i);
+            partners[p] = 0;
+            int v = pairs[p];
+            if (v > 0) {
+                below[i] = open[v];
+                open[v] = i;
+            } else if (v < 0 && open[-v] >= 0) {
+                int j = open[-v];
+                open[-v] = below[j];
+                partners[p] = encodeIndex(j);
+                partners[index(j)] = encodeIndex(i);
+            }
+        }
+        pairsValid = true;
+    }
+
+    /**
+     * Tokens before the gap are stored as ndx + 1, and tokens after it as
+     * ndx - size(), which is negative.  Zero means no token (ndx is -1).
+     */
+    private int encodeIndex(int ndx) {
+        if (ndx < 0) {
+            return 0;
+        }
+        return (ndx < gapStart) ? ndx + 1 : ndx - size();
+    }
+
+    private int decodeIndex(int value) {
+        if (value > 0) {
+            return value - 1;
+        }
+        return (value < 0) ? size() + value : -1;
+    }
+
+    private int index(int ndx) {
+        return (ndx < gapStart) ? ndx : ndx + gapEnd - gapStart;
+    }
+
+    private void move(int from, int to, int count) {
+        move(this, from, to, count);
+    }
+
+    private void move(TokenList src, int from, int to, int count) {
+        System.arraycopy(src.starts, from, starts, to, count);
+        System.arraycopy(src.lengths, from, lengths, to, count);
+        System.arraycopy(src.types, from, types, to, count);
+        System.arraycopy(src.pairs, from, pairs, to, count);
+        System.arraycopy(src.flags, from, flags, to, count);
+        System.arraycopy(src.partners, from, partners, to, count);
+        if (src.hashes != null) {
+            System.arraycopy(src.hashes, from, hashes, to, count);
+            System.arraycopy(src.prevSame, from, prevSame, to, count);
+            System.arraycopy(src.nextSame, from, nextSame, to, count);
+        }
+    }
+
+    /**
+     * Allocate the text index arrays if the other list has them.  This list
+     * must be empty.
+     */
+    private void sameCapacity(TokenList other) {
+        if (other.hashes != null) {
+            hashes = new int[starts.length];
+            prevSame = new int[starts.length];
+            nextSame = new int[starts.length];
+            firstSame = new HashMap<Integer, Integer>();
+        }
+    }
+
+    /**
+     * Make the gap at least needed tokens larger
+     */
+    private void grow(int needed) {
+        int capacity = starts.length;
+        int n = Math.max(capacity + needed, capacity * 3 / 2 + 16);
+        int tail = capacity - gapEnd;
+        TokenList grown = new TokenList(n);
+        grown.sameCapacity(this);
+        grown.move(this, 0, 0, gapStart);
+        grown.move(this, gapEnd, n - tail, tail);
+        starts = grown.starts;
+        lengths = grown.lengths;
+        types = grown.types;
+        pairs = grown.pairs;
+        flags = grown.flags;
+        partners = grown.partners;
+        hashes = grown.hashes;
+        prevSame = grown.prevSame;
+        nextSame = grown.nextSame;
+        gapEnd = n - tail;
+    }
+
+    @Override
+    public String toString() {
+        return "TokenList(" + size() + " tokens)";
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jsyntaxpane.util.JarServiceProvider;
+
+/**
+ * Tokenize text with the Lexer of a content type, without an EditorKit,
+ * a Document or a display.  No AWT or Swing UI classes are used, so this
+ * can run on headless servers.
+ *
+ * The content types are the ones in jsyntaxpane.kitsfortypes.  The Lexer of
+ * a kit is found by its name: jsyntaxpane.syntaxkits.JavaSyntaxKit uses
+ * jsyntaxpane.lexers.JavaLexer.  Other Lexers can be added with
+ * registerLexer.
+ *
+ * All methods can be called from many threads at once.  Each call uses its
+ * own Lexer, taken from the LexerPool of the content type.
+ *
+ * @author Ayman Al-Sairafi
+ */
+public class Tokenizer {
+
+    private static final Logger log = Logger.getLogger(Tokenizer.class.getName());
+    private static final ConcurrentHashMap<String, LexerPool> pools =
+            new ConcurrentHashMap<String, LexerPool>();
+    private static volatile Properties kitsForTypes;
+
+    /**
+     * Receives the tokens of the text, in order.
+     */
+    public interface TokenHandler {
+
+        public void token(Token token);
+    }
+
+    private Tokenizer() {
+    }
+
+    /**
+     * Get all the tokens of text.
+     * @param contentType
+     * @param text
+     * @return the tokens, in order
+     * @throws IllegalArgumentException if there is no Lexer for contentType
+     */
+    public static List<Token> tokenize(String contentType, CharSequence text) {
+        final List<Token> tokens = new ArrayList<Token>();
+        tokenize(contentType, text, new TokenHandler() {
+
+            public void token(Token token) {
+                tokens.add(token);
+            }
+        });
+        return tokens;
+    }
+
+    /**
+     * Get all the tokens of text in a TokenList.  With a RestartableLexer
+     * this does not create a Token object for each token, so it is better
+     * for large texts.
+     * @param contentType
+     * @param text
+     * @return the tokens, in order
+     * @throws IllegalArgumentException if there is no Lexer for contentType
+     */
+    public static TokenList tokenizeToList(String contentType, CharSequence text) {
+        TokenList tokens = new TokenList(text.length() / 4 + 16);
+        LexerPool pool = getPool(contentType);
+        Lexer lexer = pool.borrow();
+        try {
+            lexer.yyreset(reader(text));
+            if (lexer instanceof RestartableLexer) {
+                ((RestartableLexer) lexer).setTokenSink(tokens, 0);
+                while (lexer.yylex() != null) {
+                }
+            } else {
+                Token t;
+                while ((t = lexer.yylex()) != null) {
+                    tokens.add(t.type, t.start, t.length, t.pairValue);
+                }
+            }
+        } catch (IOException ex) {
+            // will not be thrown, the text is in memory
+            log.log(Level.SEVERE, null, ex);
+        } finally {
+            pool.release(lexer);
+        }
+        return tokens;
+    }
+
+    /**
+     * Pass each token of text to handler, as the Lexer finds it.
+     * @param contentType
+     * @param text
+     * @param handler
+     * @throws IllegalArgumentException if there is no Lexer for contentType
+     */
+    public static void tokenize(String contentType, CharSequence text, TokenHandler handler) {
+        try {
+            tokenize(contentType, reader(text), handler);
+        } catch (IOException ex) {
+            // will not be thrown, the text is in memory
+            log.log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Pass each token read from reader to handler, as the Lexer finds it.
+     * The reader is not closed.
+     * @param contentType
+     * @param reader
+     * @param handler
+     * @throws IOException if the reader throws it
+     * @throws IllegalArgumentException if there is no Lexer for contentType
+     */
+    public static void tokenize(String contentType, Reader reader, TokenHandler handler)
+            throws IOException {
+        LexerPool pool = getPool(contentType);
+        Lexer lexer = pool.borrow();
+        try {
+            lexer.yyreset(reader);
+            for (Token t = lexer.yylex(); t != null; t = lexer.yylex()) {
+                handler.token(t);
+            }
+        } finally {
+            pool.release(lexer);
+        }
+    }
+
+    /**
+     * Use the given Lexer class for a content type, instead of the Lexer
+     * of its kit.
+     * @param contentType
+     * @param lexerClass must have a public no-args constructor
+     */
+    public static void registerLexer(String contentType, Class<? extends Lexer> lexerClass) {
+        pools.put(contentType, new LexerPool(lexerClass));
+    }
+
+    /**
+     * @param contentType
+     * @return true if there is a Lexer for contentType
+     */
+    public static boolean isSupported(String contentType) {
+        try {
+            getPool(contentType);
+            return true;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    private static LexerPool getPool(String contentType) {
+        LexerPool pool = pools.get(contentType);
+        if (pool != null) {
+            return pool;
+        }
+        Class<? extends Lexer> lexerClass = findLexerClass(contentType);
+        if (lexerClass == null) {
+            throw new IllegalArgumentException("No Lexer for content type: " + contentType);
+        }
+        pool = LexerPool.forClass(lexerClass);
+        LexerPool other = pools.putIfAbsent(contentType, pool);
+        return other == null ? pool : other;
+    }
+
+    /**
+     * Find the Lexer class for the kit of contentType by its name.  The kit
+     * class itself is not loaded, as that would load AWT.
+     */
+    private static Class<? extends Lexer> findLexerClass(String contentType) {
+        if (kitsForTypes == null) {
+            kitsForTypes = JarServiceProvider.readProperties("jsyntaxpane.kitsfortypes");
+        }
+        String kit = kitsForTypes.getProperty(contentType);
+        if (kit == null) {
+            return null;
+        }
+        String name = kit.trim().replace(".syntaxkits.", ".lexers.");
+        if (name.endsWith("SyntaxKit")) {
+            name = name.substring(0, name.length() - "SyntaxKit".length()) + "Lexer";
+        }
+        try {
+            Class<?> c = Class.forName(name, true, Tokenizer.class.getClassLoader());
+            if (Lexer.class.isAssignableFrom(c)) {
+                return c.asSubclass(Lexer.class);
+            }
+        } catch (ClassNotFoundException ex) {
+            log.log(Level.WARNING, "No Lexer {0} for content type {1}",
+                    new Object[]{name, contentType});
+        }
+        return null;
+    }
+
+    private static Reader reader(CharSequence text) {
+        if (text instanceof String) {
+            return new StringReader((String) text);
+        }
+        return new CharSequenceReader(text);
+    }
+
+    /**
+     * Reads a CharSequence without copying it to a String.
+     */
+    private static class CharSequenceReader extends Reader {
+
+        private final CharSequence text;
+        private int pos = 0;
+
+        CharSequenceReader(CharSequence text) {
+            this.text = text;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            int n = Math.min(len, text.length() - pos);
+            if (n <= 0) {
+                return len == 0 ? 0 : -1;
+            }
+            for (int i = 0; i < n; i++) {
+                cbuf[off + i] = text.charAt(pos + i);
+            }
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -165,19 +165,18 @@ public class FindReplaceActions implements SyntaxAction {
 
     /**
      * Perform a replace all operation on the given component.
-     * Note that this create a new duplicate String big as the entire
-     * document and then assign it to the target text component
+     * Only the matches are replaced, and it is undone as one edit.
      * @param target
      * @param replacement
+     * @return the number of matches replaced
+     * @see SyntaxDocument#replaceAll(Pattern, String)
      */
-    public void replaceAll(JTextComponent target, String replacement) {
+    public int replaceAll(JTextComponent target, String replacement) {
         SyntaxDocument sDoc = ActionUtils.getSyntaxDocument(target);
         if (pattern == null || sDoc == null) {
-            return;
+            return 0;
         }
-        Matcher matcher = sDoc.getMatcher(pattern);
-        String newText = matcher.replaceAll(replacement);
-        target.setText(newText);
+        return sDoc.replaceAll(pattern, replacement);
     }
 
     // - Getters and setters -------------------------------------------------
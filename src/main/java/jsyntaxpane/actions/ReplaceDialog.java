@@ -41,6 +41,23 @@ public class ReplaceDialog extends javax.swing.JDialog implements CaretListener,
     private JTextComponent textComponent;
     private FindReplaceActions finder;
     private static Markers.SimpleMarker SEARCH_MARKER = new Markers.SimpleMarker(Color.YELLOW);
+    /**
+     * The matches highlighted, and the selection they were marked around.
+     */
+    private final SearchMatches matches = new SearchMatches(new SearchMatches.Listener() {
+
+        @Override
+        public void matchesChanged(int first, int last, int start, int end) {
+            if (first == 0 && last == matches.size()) {
+                markMatches();
+            } else {
+                // only the marks of the changed text are replaced
+                matches.mark(textComponent, SEARCH_MARKER, first, last, start, end);
+            }
+        }
+    });
+    private int markedSelStart;
+    private int markedSelEnd;
 
     /** Creates new form FindDialog */
     public ReplaceDialog(JTextComponent text,
@@ -55,16 +72,32 @@ public class ReplaceDialog extends javax.swing.JDialog implements CaretListener,
     }
 
     /**
-     * updates the highlights in the document when it is updated.
-     * This is called by the DocumentListener methods
+     * Update the highlights for the pattern of the finder.  The matches are
+     * kept, and follow the changes to the document, so the document is only
+     * searched again when the pattern or the document changes.
      */
     public void updateHighlights() {
-        Markers.removeMarkers(textComponent, SEARCH_MARKER);
         if (jTglHighlight.isSelected()) {
-            Markers.markAll(textComponent, finder.getPattern(), SEARCH_MARKER);
+            matches.find(textComponent.getDocument(), finder.getPattern());
+            if (!matches.isPending()) {
+                markMatches();
+            }
+        } else {
+            matches.stop();
+            Markers.removeMarkers(textComponent, SEARCH_MARKER);
         }
     }
 
+    /**
+     * Mark the current matches.  The selected text is not marked.
+     */
+    private void markMatches() {
+        Markers.removeMarkers(textComponent, SEARCH_MARKER);
+        matches.mark(textComponent, SEARCH_MARKER);
+        markedSelStart = textComponent.getSelectionStart();
+        markedSelEnd = textComponent.getSelectionEnd();
+    }
+
     private void showRegexpError(PatternSyntaxException ex) throws HeadlessException {
         JOptionPane.showMessageDialog(this, "Regexp error: " + ex.getMessage(),
                 "Regular Expression Error", JOptionPane.ERROR_MESSAGE);
@@ -240,7 +273,11 @@ public class ReplaceDialog extends javax.swing.JDialog implements CaretListener,
             updateFinder();
             String replacement = (String) jCmbReplace.getSelectedItem();
             ActionUtils.insertIntoCombo(jCmbFind, replacement);
-            finder.replaceAll(textComponent, replacement);
+            // the markers would otherwise follow each of the edits, the
+            // matches are marked again when they are updated
+            Markers.removeMarkers(textComponent, SEARCH_MARKER);
+            int count = finder.replaceAll(textComponent, replacement);
+            jLblStatus.setText(count + " replaced");
             textComponent.requestFocusInWindow();
         } catch (PatternSyntaxException ex) {
             showRegexpError(ex);
@@ -267,7 +304,20 @@ public class ReplaceDialog extends javax.swing.JDialog implements CaretListener,
     // End of variables declaration//GEN-END:variables
 
     public void caretUpdate(CaretEvent e) {
-        updateHighlights();
+        if (!jTglHighlight.isSelected()) {
+            return;
+        }
+        // moving the caret needs no new marks, unless the pattern changed or
+        // text was or is selected
+        int selStart = textComponent.getSelectionStart();
+        int selEnd = textComponent.getSelectionEnd();
+        if (selStart != selEnd || markedSelStart != markedSelEnd) {
+            markedSelStart = -1;
+        }
+        matches.find(textComponent.getDocument(), finder.getPattern());
+        if (markedSelStart < 0 && !matches.isPending()) {
+            markMatches();
+        }
     }
 
     public void keyTyped(KeyEvent arg0) {
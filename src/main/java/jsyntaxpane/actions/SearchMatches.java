@@ -0,0 +1,484 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane.actions;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.Segment;
+import jsyntaxpane.DocumentCharSequence;
+import jsyntaxpane.SyntaxDocument;
+import jsyntaxpane.components.Markers;
+
+/**
+ * The matches of a pattern in a document, kept up to date while the document
+ * changes.  The whole document is searched once, on a background thread.
+ * After that, only the text from the line of each change is searched again,
+ * until the matches are the same as before the change.
+ * The listener is told on the EDT each time the matches change, and which
+ * of them are new.
+ *
+ * Like incremental parsing, a match that spans lines is only found again
+ * if it was found before the change, or starts on the changed line.
+ *
+ * @author Ayman Al-Sairafi
+ */
+class SearchMatches implements DocumentListener {
+
+    /**
+     * Told on the EDT when the matches change.
+     */
+    interface Listener {
+
+        /**
+         * The matches from index first up to last (exclusive) are new.  They
+         * replace the matches there were in the text between start and end,
+         * and the other matches only moved with the changes.
+         */
+        void matchesChanged(int first, int last, int start, int end);
+    }
+    private final Listener listener;
+    private Document doc;
+    private Pattern pattern;
+    // the matches, in document order.  They do not overlap, so both the
+    // starts and the ends are sorted
+    private int[] starts = new int[0];
+    private int[] ends = new int[0];
+    private int count = 0;
+    // the search of the whole document, while it runs
+    private Search search;
+    // the text changed since the matches were found, as in SyntaxDocument
+    private int dirtyStart = -1;
+    private int dirtyEnd;
+    private int dirtyDelta;
+    private boolean updateQueued = false;
+
+    /**
+     * @param listener told on the EDT when the matches change
+     */
+    SearchMatches(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Start finding the matches of pattern in doc.  Nothing is done if they
+     * are the matches already kept or being found.
+     * @param doc
+     * @param pattern may be null, to find no matches
+     */
+    void find(Document doc, Pattern pattern) {
+        if (doc == this.doc && samePattern(pattern)) {
+            return;
+        }
+        stop();
+        if (doc == null || pattern == null) {
+            return;
+        }
+        this.doc = doc;
+        this.pattern = pattern;
+        doc.addDocumentListener(this);
+        search = new Search(doc, pattern);
+        getSearcher().submit(search);
+    }
+
+    /**
+     * Drop the matches, and search the whole document again.
+     */
+    private void restart() {
+        Document d = doc;
+        Pattern p = pattern;
+        stop();
+        find(d, p);
+    }
+
+    private boolean samePattern(Pattern other) {
+        if (pattern == null || other == null) {
+            return pattern == other;
+        }
+        return pattern.pattern().equals(other.pattern()) &&
+                pattern.flags() == other.flags();
+    }
+
+    /**
+     * Drop the matches, and stop following the document.
+     */
+    void stop() {
+        if (search != null) {
+            search.cancelled = true;
+            search = null;
+        }
+        if (doc != null) {
+            doc.removeDocumentListener(this);
+        }
+        doc = null;
+        pattern = null;
+        count = 0;
+        dirtyStart = -1;
+    }
+
+    /**
+     * @return the number of matches, 0 until the document was searched
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Mark all the matches on pane.
+     * @param pane
+     * @param marker
+     */
+    void mark(JTextComponent pane, Markers.SimpleMarker marker) {
+        Markers.markAll(pane, starts, ends, count, marker);
+    }
+
+    /**
+     * Mark the matches from index first up to last on pane, instead of the
+     * ones marked between start and end, as told to the listener.
+     * @param pane
+     * @param marker
+     */
+    void mark(JTextComponent pane, Markers.SimpleMarker marker, int first,
+            int last, int start, int end) {
+        Markers.markAll(pane, start, end, starts, ends, first, last, marker);
+    }
+
+    /**
+     * @return true if the matches are not up to date with the document
+     */
+    boolean isPending() {
+        return search != null || dirtyStart >= 0;
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        if (SyntaxDocument.isLoad(e)) {
+            // all the text is new, so the search starts over
+            restart();
+            return;
+        }
+        changed(e.getOffset(), e.getOffset() + e.getLength(), e.getLength());
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        changed(e.getOffset(), e.getOffset(), -e.getLength());
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+    }
+
+    /**
+     * Record that the text between start and end replaced text that was
+     * delta chars shorter.  The matches are updated once for all the changes
+     * made before the EDT gets to it.
+     */
+    private void changed(int start, int end, int delta) {
+        if (search != null && !search.copied) {
+            // the search thread has copied only part of the text
+            restart();
+            return;
+        }
+        if (dirtyStart < 0) {
+            dirtyStart = start;
+            dirtyEnd = end;
+            dirtyDelta = delta;
+        } else {
+            dirtyEnd = (dirtyEnd >= end - delta) ? dirtyEnd + delta : end;
+            dirtyStart = Math.min(dirtyStart, start);
+            dirtyDelta += delta;
+        }
+        if (!updateQueued) {
+            updateQueued = true;
+            SwingUtilities.invokeLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    updateQueued = false;
+                    update(false);
+                }
+            });
+        }
+    }
+
+    /**
+     * Search the changed text again.  The matches before the line of the
+     * change are kept, and so are the ones after it once a match is found
+     * that is the same as an old one.
+     * @param all true to tell the listener all the matches are new
+     */
+    private void update(boolean all) {
+        if (doc == null || search != null || dirtyStart < 0) {
+            return;
+        }
+        int oldEnd = dirtyEnd - dirtyDelta;
+        Element root = doc.getDefaultRootElement();
+        int from = root.getElement(root.getElementIndex(dirtyStart)).getStartOffset();
+        // the matches ending before the line are kept, and the search starts
+        // at the first one that does not
+        int head = 0;
+        while (head < count && ends[head] < from) {
+            head++;
+        }
+        if (head < count) {
+            from = Math.min(from, starts[head]);
+        }
+        int tail = head;
+        while (tail < count && starts[tail] < oldEnd) {
+            tail++;
+        }
+        int[] newStarts = new int[Math.max(16, count)];
+        int[] newEnds = new int[newStarts.length];
+        System.arraycopy(starts, 0, newStarts, 0, head);
+        System.arraycopy(ends, 0, newEnds, 0, head);
+        int n = head;
+        Matcher m = pattern.matcher(new DocumentCharSequence(doc, 0, doc.getLength()));
+        boolean found = m.find(from);
+        while (found) {
+            int s = m.start();
+            // old matches before this one are gone
+            while (tail < count && starts[tail] + dirtyDelta < s) {
+                tail++;
+            }
+            if (s >= dirtyEnd && tail < count && starts[tail] + dirtyDelta == s &&
+                    ends[tail] + dirtyDelta == m.end()) {
+                // the rest are only moved by the change
+                break;
+            }
+            if (n == newStarts.length) {
+                newStarts = copyOf(newStarts, n * 2);
+                newEnds = copyOf(newEnds, n * 2);
+            }
+            newStarts[n] = s;
+            newEnds[n] = m.end();
+            n++;
+            found = m.find();
+        }
+        // the new matches replace the old ones up to the first one kept
+        int last = n;
+        int end = found ? m.start() : doc.getLength();
+        if (!found) {
+            tail = count;
+        }
+        if (n + count - tail > newStarts.length) {
+            newStarts = copyOf(newStarts, n + count - tail);
+            newEnds = copyOf(newEnds, n + count - tail);
+        }
+        for (int i = tail; i < count; i++, n++) {
+            newStarts[n] = starts[i] + dirtyDelta;
+            newEnds[n] = ends[i] + dirtyDelta;
+        }
+        starts = newStarts;
+        ends = newEnds;
+        count = n;
+        dirtyStart = -1;
+        if (all) {
+            listener.matchesChanged(0, count, 0, doc.getLength());
+        } else {
+            listener.matchesChanged(head, last, from, end);
+        }
+    }
+
+    /**
+     * Searches a copy of the document on the search thread, and uses the
+     * matches on the EDT.  Changes made once the text is copied are searched
+     * again then.  A change made while it is copied cancels the search, and
+     * the search starts over.
+     */
+    private class Search implements Runnable {
+
+        private final Document source;
+        private final Pattern pattern;
+        private char[] text;
+        private int copiedTo = 0;
+        volatile boolean cancelled = false;
+        // set by the search thread under a read lock of the document, so the
+        // listener, which is called under the write lock, sees it in time
+        volatile boolean copied = false;
+
+        Search(Document doc, Pattern pattern) {
+            this.source = doc;
+            this.pattern = pattern;
+        }
+
+        /**
+         * Copy the text of the document in blocks, each under a read lock, so
+         * the EDT can change the document between them.
+         * @return false if the search was cancelled meanwhile
+         */
+        private boolean copyText() {
+            final Segment seg = new Segment();
+            seg.setPartialReturn(true);
+            Runnable copyBlock = new Runnable() {
+
+                @Override
+                public void run() {
+                    if (cancelled) {
+                        return;
+                    }
+                    if (text == null) {
+                        text = new char[source.getLength()];
+                    }
+                    int end = Math.min(text.length, copiedTo + COPY_BLOCK);
+                    try {
+                        while (copiedTo < end) {
+                            source.getText(copiedTo, end - copiedTo, seg);
+                            System.arraycopy(seg.array, seg.offset, text, copiedTo, seg.count);
+                            copiedTo += seg.count;
+                        }
+                    } catch (BadLocationException ex) {
+                        LOG.log(Level.SEVERE, null, ex);
+                        cancelled = true;
+                        return;
+                    }
+                    copied = copiedTo == text.length;
+                }
+            };
+            while (!cancelled && !copied) {
+                source.render(copyBlock);
+            }
+            return !cancelled;
+        }
+
+        @Override
+        public void run() {
+            if (!copyText()) {
+                return;
+            }
+            int[] s = new int[16];
+            int[] e = new int[16];
+            int n = 0;
+            try {
+                Matcher m = pattern.matcher(new Text(0, text.length));
+                while (m.find()) {
+                    if (n == s.length) {
+                        s = copyOf(s, n * 2);
+                        e = copyOf(e, n * 2);
+                    }
+                    s[n] = m.start();
+                    e[n] = m.end();
+                    n++;
+                }
+            } catch (CancellationException ex) {
+                return;
+            }
+            final int[] foundStarts = s;
+            final int[] foundEnds = e;
+            final int found = n;
+            SwingUtilities.invokeLater(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (search != Search.this) {
+                        return;
+                    }
+                    search = null;
+                    starts = foundStarts;
+                    ends = foundEnds;
+                    count = found;
+                    if (dirtyStart >= 0) {
+                        update(true);
+                    } else {
+                        listener.matchesChanged(0, count, 0, doc.getLength());
+                    }
+                }
+            });
+        }
+
+        /**
+         * The text to match, which stops the matcher when the search is
+         * cancelled.
+         */
+        private class Text implements CharSequence {
+
+            private final int start;
+            private final int end;
+
+            Text(int start, int end) {
+                this.start = start;
+                this.end = end;
+            }
+
+            @Override
+            public int length() {
+                return end - start;
+            }
+
+            @Override
+            public char charAt(int index) {
+                if (cancelled) {
+                    throw new CancellationException();
+                }
+                return text[start + index];
+            }
+
+            @Override
+            public CharSequence subSequence(int from, int to) {
+                return new Text(start + from, start + to);
+            }
+
+            @Override
+            public String toString() {
+                return new String(text, start, end - start);
+            }
+        }
+    }
+
+    /**
+     * The most chars the search thread copies under one read lock.
+     */
+    private static final int COPY_BLOCK = 64 * 1024;
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    /**
+     * The thread the searches of all documents run on.
+     */
+    private static ExecutorService searcher;
+
+    private static synchronized ExecutorService getSearcher() {
+        if (searcher == null) {
+            searcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SearchMatches");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.NORM_PRIORITY - 1);
+                    return t;
+                }
+            });
+        }
+        return searcher;
+    }
+
+    private static final Logger LOG = Logger.getLogger(SearchMatches.class.getName());
+}
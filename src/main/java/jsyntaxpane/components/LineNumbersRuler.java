@@ -43,8 +43,13 @@ public class LineNumbersRuler extends JComponent
     public static final int DEFAULT_R_MARGIN = 5;
     public static final int DEFAULT_L_MARGIN = 5;
     private JEditorPane pane;
-    private String format;
     private int lineCount = -1;
+    // the number of digits shown, and the number of lines the preferred
+    // height has room for
+    private int digits = 0;
+    private int linesFit = 0;
+    // the number being painted, right aligned, padded with spaces
+    private char[] number = new char[0];
     private int r_margin;
     private int l_margin;
     private int charHeight;
@@ -76,38 +81,82 @@ public class LineNumbersRuler extends JComponent
         int lh = charHeight;
         int end = clip.y + clip.height + lh;
         int lineNum = clip.y / lh + 1;
+        if (lineNum > lineCount) {
+            return;
+        }
+        setNumber(lineNum);
         // round the start to a multiple of lh, and shift by 2 pixels to align
         // properly to the text.
         for (int y = (clip.y / lh) * lh + lh - 2; y <= end; y += lh) {
-            String text = String.format(format, lineNum);
-            g.drawString(text, l_margin, y);
+            g.drawChars(number, 0, number.length, l_margin, y);
             lineNum++;
             if (lineNum > lineCount) {
                 break;
             }
+            increment();
+        }
+    }
+
+    /**
+     * Put n in the number buffer, right aligned.
+     */
+    private void setNumber(int n) {
+        for (int i = number.length - 1; i >= 0; i--) {
+            number[i] = (n == 0 && i < number.length - 1) ? ' ' : (char) ('0' + n % 10);
+            n /= 10;
+        }
+    }
+
+    /**
+     * Add one to the number in the number buffer.  It must not take more
+     * digits than the buffer has.
+     */
+    private void increment() {
+        for (int i = number.length - 1; i >= 0; i--) {
+            if (number[i] == '9') {
+                number[i] = '0';
+            } else {
+                number[i] = (number[i] == ' ') ? '1' : (char) (number[i] + 1);
+                return;
+            }
         }
     }
 
     /**
-     * Update the size of the line numbers based on the length of the document
+     * Update the line count, and the size of the line numbers if the number
+     * of digits changed or the lines do not fit its height.  Otherwise only
+     * the lines that were added or removed are repainted.
+     * @param force if true, the size is always updated
      */
-    private void updateSize() {
+    private void updateSize(boolean force) {
         int newLineCount = ActionUtils.getLineCount(pane);
-        if (newLineCount == lineCount) {
+        if (newLineCount == lineCount && !force) {
             return;
         }
+        int oldLineCount = lineCount;
         lineCount = newLineCount;
-        int h = lineCount * charHeight + pane.getHeight();
-        int d = (int) Math.log10(lineCount) + 1;
-        if (d < 1) {
-            d = 1;
+        int d = 1;
+        for (int n = lineCount; n >= 10; n /= 10) {
+            d++;
         }
+        if (d == digits && lineCount <= linesFit && !force) {
+            int from = Math.min(oldLineCount, lineCount);
+            int to = Math.max(oldLineCount, lineCount);
+            repaint(0, from * charHeight, getWidth(), (to - from + 1) * charHeight);
+            return;
+        }
+        if (d != digits) {
+            digits = d;
+            number = new char[d];
+        }
+        // leave room for more lines, so the height does not change with
+        // every line added
+        linesFit = Math.max(lineCount * 2, 16);
+        int h = linesFit * charHeight + pane.getHeight();
         int w = d * charWidth + r_margin + l_margin;
-        format = "%" + d + "d";
         setPreferredSize(new Dimension(w, h));
-        if(getParent() != null){
-            getParent().doLayout();
-        }
+        revalidate();
+        repaint();
     }
 
     /**
@@ -155,7 +204,7 @@ public class LineNumbersRuler extends JComponent
         } else {
             sp.setRowHeaderView(this);
             this.pane.getDocument().addDocumentListener(this);
-            updateSize();
+            updateSize(true);
             gotoLineDialog = new GotoLineDialog(pane);
             mouseListener = new MouseAdapter() {
 
@@ -192,18 +241,20 @@ public class LineNumbersRuler extends JComponent
         } else if (evt.getPropertyName().equals("font")) {
             charHeight = pane.getFontMetrics(pane.getFont()).getHeight();
             charWidth = pane.getFontMetrics(pane.getFont()).charWidth('0');
+            if (lineCount >= 0) {
+                updateSize(true);
+            }
         }
     }
 
     public void insertUpdate(DocumentEvent e) {
-        updateSize();
+        updateSize(false);
     }
 
     public void removeUpdate(DocumentEvent e) {
-        updateSize();
+        updateSize(false);
     }
 
     public void changedUpdate(DocumentEvent e) {
-        updateSize();
     }
 }
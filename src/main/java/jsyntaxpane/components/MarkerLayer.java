@@ -0,0 +1,377 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane.components;
+
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
+import javax.swing.text.JTextComponent;
+import jsyntaxpane.SyntaxDocument;
+
+/**
+ * All the ranges marked with one SimpleMarker on a text component.  The
+ * layer is a single highlight on the component, so adding and removing
+ * ranges does not go through the Highlighter, and painting it only looks
+ * at the ranges that intersect the clip.
+ *
+ * The ranges are kept sorted by start, with the largest end of each range
+ * and all the ranges before it.  That is enough to find the ranges that
+ * overlap a region with a binary search, like an interval tree would, since
+ * markers are mostly added in document order and removed all at once.
+ *
+ * The layer follows the changes to the document while it has ranges.  Like
+ * the tokens of a SyntaxDocument, the ranges are kept in arrays with a gap
+ * at the last change, and the offsets of the ranges after the gap are
+ * stored relative to a tail shift, so an edit only moves the few ranges
+ * before it that reach past it.
+ * 
+ * @author Ayman Al-Sairafi
+ */
+class MarkerLayer implements Highlighter.HighlightPainter, DocumentListener {
+
+    private final JTextComponent pane;
+    private final Markers.SimpleMarker marker;
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    // maxEnds[i] is the largest of ends[0..i]
+    private int[] maxEnds = new int[16];
+    // the gap is from gapStart to gapEnd (exclusive) in the arrays
+    private int gapStart = 0;
+    private int gapEnd = 16;
+    // added to the stored offsets of the ranges after the gap
+    private int tailShift = 0;
+    // the highlight and the document listener, while there are ranges
+    private Object tag;
+    private Document doc;
+
+    MarkerLayer(JTextComponent pane, Markers.SimpleMarker marker) {
+        this.pane = pane;
+        this.marker = marker;
+    }
+
+    private int size() {
+        return starts.length - (gapEnd - gapStart);
+    }
+
+    private int getStart(int ndx) {
+        return (ndx < gapStart) ? starts[ndx] : starts[ndx + gapEnd - gapStart] + tailShift;
+    }
+
+    private int getEnd(int ndx) {
+        return (ndx < gapStart) ? ends[ndx] : ends[ndx + gapEnd - gapStart] + tailShift;
+    }
+
+    private int getMaxEnd(int ndx) {
+        return (ndx < gapStart) ? maxEnds[ndx] : maxEnds[ndx + gapEnd - gapStart] + tailShift;
+    }
+
+    /**
+     * @return the index of the first range starting after pos, or at it if
+     * inclusive is true
+     */
+    private int find(int pos, boolean inclusive) {
+        int lo = 0;
+        int hi = size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int start = getStart(mid);
+            if (start < pos || (!inclusive && start == pos)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @return the index of the first range that ends after pos, or may be
+     * followed by one that does
+     */
+    private int findMaxEndAfter(int pos) {
+        int lo = 0;
+        int hi = size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getMaxEnd(mid) <= pos) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Move the gap so it is before the range at ndx
+     */
+    private void moveGap(int ndx) {
+        if (ndx < gapStart) {
+            int count = gapStart - ndx;
+            int to = gapEnd - count;
+            System.arraycopy(starts, ndx, starts, to, count);
+            System.arraycopy(ends, ndx, ends, to, count);
+            System.arraycopy(maxEnds, ndx, maxEnds, to, count);
+            for (int i = to; i < gapEnd; i++) {
+                starts[i] -= tailShift;
+                ends[i] -= tailShift;
+                maxEnds[i] -= tailShift;
+            }
+            gapStart = ndx;
+            gapEnd = to;
+        } else if (ndx > gapStart) {
+            int count = ndx - gapStart;
+            System.arraycopy(starts, gapEnd, starts, gapStart, count);
+            System.arraycopy(ends, gapEnd, ends, gapStart, count);
+            System.arraycopy(maxEnds, gapEnd, maxEnds, gapStart, count);
+            for (int i = gapStart; i < ndx; i++) {
+                starts[i] += tailShift;
+                ends[i] += tailShift;
+                maxEnds[i] += tailShift;
+            }
+            gapStart = ndx;
+            gapEnd += count;
+        }
+    }
+
+    private void grow() {
+        int n = starts.length * 2;
+        int tail = starts.length - gapEnd;
+        starts = grown(starts, n, tail);
+        ends = grown(ends, n, tail);
+        maxEnds = grown(maxEnds, n, tail);
+        gapEnd = n - tail;
+    }
+
+    private int[] grown(int[] array, int length, int tail) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, gapStart);
+        System.arraycopy(array, array.length - tail, copy, length - tail, tail);
+        return copy;
+    }
+
+    /**
+     * Add the range between start and end.  The caller must damage it.
+     * @param start
+     * @param end
+     */
+    void add(int start, int end) {
+        if (doc != null && doc != pane.getDocument()) {
+            // the ranges are in a document the pane no longer shows
+            removeAll();
+            detach();
+        }
+        if (size() == 0 && !attach()) {
+            return;
+        }
+        // insert after all the ranges starting at or before start
+        moveGap(find(start, false));
+        if (gapStart == gapEnd) {
+            grow();
+        }
+        starts[gapStart] = start;
+        ends[gapStart] = end;
+        maxEnds[gapStart] = (gapStart == 0) ? end : Math.max(maxEnds[gapStart - 1], end);
+        gapStart++;
+        // the ranges after it up to the first that ends after it end there
+        for (int i = gapEnd; i < starts.length && maxEnds[i] + tailShift < end; i++) {
+            maxEnds[i] = end - tailShift;
+        }
+    }
+
+    /**
+     * Remove the ranges that start at or after start and before end, and
+     * the empty ranges at end, which is where removed text leaves them.  The
+     * caller must damage them.
+     * @param start
+     * @param end
+     */
+    void remove(int start, int end) {
+        int first = find(start, true);
+        int last = find(end, true);
+        while (last < size() && getStart(last) == end && getEnd(last) == end) {
+            last++;
+        }
+        moveGap(last);
+        gapStart = first;
+        // the ranges after them may have ended at one of them
+        int max = (first == 0) ? Integer.MIN_VALUE : maxEnds[first - 1];
+        for (int i = gapEnd; i < starts.length; i++) {
+            max = Math.max(max, ends[i] + tailShift);
+            if (maxEnds[i] + tailShift == max) {
+                break;
+            }
+            maxEnds[i] = max - tailShift;
+        }
+        if (size() == 0 && doc != null) {
+            detach();
+        }
+    }
+
+    private void removeAll() {
+        gapStart = 0;
+        gapEnd = starts.length;
+        tailShift = 0;
+    }
+
+    /**
+     * Remove all the ranges, and repaint where they were.
+     */
+    void clear() {
+        int count = size();
+        if (count == 0) {
+            return;
+        }
+        int start = getStart(0);
+        int end = getMaxEnd(count - 1);
+        removeAll();
+        detach();
+        damage(start, end);
+    }
+
+    /**
+     * Repaint the region between start and end.
+     */
+    void damage(int start, int end) {
+        int length = pane.getDocument().getLength();
+        start = Math.min(start, length);
+        end = Math.min(end, length);
+        pane.getUI().damageRange(pane, start, end);
+    }
+
+    /**
+     * Add the layer as a highlight of the pane, and start following the
+     * changes of its document.
+     * @return false if the pane has no highlighter
+     */
+    private boolean attach() {
+        Highlighter highlighter = pane.getHighlighter();
+        if (highlighter == null) {
+            return false;
+        }
+        try {
+            tag = highlighter.addHighlight(0, 0, this);
+        } catch (BadLocationException ex) {
+            LOG.log(Level.SEVERE, null, ex);
+            return false;
+        }
+        doc = pane.getDocument();
+        doc.addDocumentListener(this);
+        return true;
+    }
+
+    private void detach() {
+        Highlighter highlighter = pane.getHighlighter();
+        if (highlighter != null) {
+            highlighter.removeHighlight(tag);
+        }
+        tag = null;
+        doc.removeDocumentListener(this);
+        doc = null;
+    }
+
+    @Override
+    public void paint(Graphics g, int p0, int p1, Shape bounds, JTextComponent c) {
+        int count = size();
+        if (count == 0 || doc != c.getDocument()) {
+            return;
+        }
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = bounds.getBounds();
+        }
+        // the lines the clip covers
+        Element root = doc.getDefaultRootElement();
+        int top = c.viewToModel(new Point(clip.x, clip.y));
+        int bottom = c.viewToModel(new Point(clip.x + clip.width,
+                clip.y + clip.height));
+        if (top < 0 || bottom < 0) {
+            return;
+        }
+        int lo = root.getElement(root.getElementIndex(top)).getStartOffset();
+        int hi = root.getElement(root.getElementIndex(bottom)).getEndOffset();
+        for (int i = findMaxEndAfter(lo); i < count && getStart(i) < hi; i++) {
+            int start = getStart(i);
+            int end = getEnd(i);
+            if (end > lo && end > start) {
+                marker.paint(g, start, end, bounds, c);
+            }
+        }
+    }
+
+    /**
+     * Map a position for an insert of length at offset.
+     */
+    private static int inserted(int pos, int offset, int length) {
+        return (pos > offset) ? pos + length : pos;
+    }
+
+    /**
+     * Map a position for a removal of length at offset.
+     */
+    private static int removed(int pos, int offset, int length) {
+        if (pos >= offset + length) {
+            return pos - length;
+        }
+        return Math.min(pos, offset);
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        int offset = e.getOffset();
+        int length = e.getLength();
+        if (SyntaxDocument.isLoad(e)) {
+            // all the text is new
+            clear();
+            return;
+        }
+        // ranges starting at the insert move with the text after it
+        moveGap(find(offset, true));
+        // and the ones before it that end after it grow
+        for (int i = findMaxEndAfter(offset); i < gapStart; i++) {
+            ends[i] = inserted(ends[i], offset, length);
+            maxEnds[i] = inserted(maxEnds[i], offset, length);
+        }
+        tailShift += length;
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        int offset = e.getOffset();
+        int length = e.getLength();
+        // ranges starting after the removed text only move
+        moveGap(find(offset + length, true));
+        for (int i = findMaxEndAfter(offset); i < gapStart; i++) {
+            starts[i] = removed(starts[i], offset, length);
+            ends[i] = removed(ends[i], offset, length);
+            maxEnds[i] = removed(maxEnds[i], offset, length);
+        }
+        tailShift -= length;
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+    }
+
+    private static final Logger LOG = Logger.getLogger(MarkerLayer.class.getName());
+}
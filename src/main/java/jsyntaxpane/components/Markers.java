@@ -15,13 +15,13 @@ package jsyntaxpane.components;
 
 import jsyntaxpane.actions.*;
 import java.awt.Color;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import javax.swing.text.BadLocationException;
 import javax.swing.text.DefaultHighlighter;
-import javax.swing.text.Highlighter;
 import javax.swing.text.JTextComponent;
 import jsyntaxpane.SyntaxDocument;
 import jsyntaxpane.Token;
@@ -42,24 +42,57 @@ public class Markers {
         }
     }
 
+    /**
+     * Return the layer holding the ranges marked with marker on component.
+     * @param component
+     * @param marker
+     * @param create if true, a new layer is created if there is none
+     * @return the layer, or null if there is none and create is false
+     */
+    private static MarkerLayer getLayer(JTextComponent component,
+            SimpleMarker marker, boolean create) {
+        @SuppressWarnings("unchecked")
+        Map<SimpleMarker, MarkerLayer> layers =
+                (Map<SimpleMarker, MarkerLayer>) component.getClientProperty(MarkerLayer.class);
+        if (layers == null) {
+            if (!create) {
+                return null;
+            }
+            layers = new HashMap<SimpleMarker, MarkerLayer>();
+            component.putClientProperty(MarkerLayer.class, layers);
+        }
+        MarkerLayer layer = layers.get(marker);
+        if (layer == null && create) {
+            layer = new MarkerLayer(component, marker);
+            layers.put(marker, layer);
+        }
+        return layer;
+    }
+
     /**
      * Removes only our private highlights
      * This is public so that we can remove the highlights when the editorKit
      * is unregistered.  SimpleMarker can be null, in which case all instances of
      * our Markers are removed.
+     * Each marker keeps its highlights in one layer, so they are removed at
+     * once, without looking at them.
      * @param component the text component whose markers are to be removed
      * @param marker the SimpleMarker to remove
      */
     public static void removeMarkers(JTextComponent component, SimpleMarker marker) {
-        Highlighter hilite = component.getHighlighter();
-        Highlighter.Highlight[] hilites = hilite.getHighlights();
-
-        for (int i = 0; i < hilites.length; i++) {
-            if (hilites[i].getPainter() instanceof SimpleMarker) {
-                SimpleMarker hMarker = (SimpleMarker) hilites[i].getPainter();
-                if (marker == null || hMarker.equals(marker)) {
-                    hilite.removeHighlight(hilites[i]);
-                }
+        if (marker != null) {
+            MarkerLayer layer = getLayer(component, marker, false);
+            if (layer != null) {
+                layer.clear();
+            }
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        Map<SimpleMarker, MarkerLayer> layers =
+                (Map<SimpleMarker, MarkerLayer>) component.getClientProperty(MarkerLayer.class);
+        if (layers != null) {
+            for (MarkerLayer layer : layers.values()) {
+                layer.clear();
             }
         }
     }
@@ -90,27 +123,40 @@ public class Markers {
      * @param marker
      */
     public static void markText(JTextComponent pane, int start, int end, SimpleMarker marker) {
-        try {
-            Highlighter hiliter = pane.getHighlighter();
-            int selStart = pane.getSelectionStart();
-            int selEnd = pane.getSelectionEnd();
-            // if there is no selection or selection does not overlap
-            if(selStart == selEnd || end < selStart || start > selStart) {
-                hiliter.addHighlight(start, end, marker);
-                return;
-            }
-            // selection starts within the highlight, highlight before slection
-            if(selStart > start && selStart < end ) {
-                hiliter.addHighlight(start, selStart, marker);
-            }
-            // selection ends within the highlight, highlight remaining
-            if(selEnd > start && selEnd < end ) {
-                hiliter.addHighlight(selEnd, end, marker);
-            }
+        MarkerLayer layer = getLayer(pane, marker, true);
+        addRange(pane, layer, start, end);
+        layer.damage(start, end);
+    }
 
-        } catch (BadLocationException ex) {
+    /**
+     * Add the given region to layer, except for the part of it that is
+     * selected.
+     */
+    private static void addRange(JTextComponent pane, MarkerLayer layer, int start, int end) {
+        if (start < 0 || end > pane.getDocument().getLength()) {
             // nothing we can do if the request is out of bound
-            LOG.log(Level.SEVERE, null, ex);
+            LOG.log(Level.SEVERE, "Invalid marker range: {0} - {1}",
+                    new Object[]{start, end});
+            return;
+        }
+        if (start == end) {
+            // there is nothing to paint
+            return;
+        }
+        int selStart = pane.getSelectionStart();
+        int selEnd = pane.getSelectionEnd();
+        // if there is no selection or selection does not overlap
+        if(selStart == selEnd || end < selStart || start > selStart) {
+            layer.add(start, end);
+            return;
+        }
+        // selection starts within the highlight, highlight before slection
+        if(selStart > start && selStart < end ) {
+            layer.add(start, selStart);
+        }
+        // selection ends within the highlight, highlight remaining
+        if(selEnd > start && selEnd < end ) {
+            layer.add(selEnd, end);
         }
     }
 
@@ -125,10 +171,66 @@ public class Markers {
         if(sDoc  == null || pattern == null) {
             return;
         }
+        MarkerLayer layer = getLayer(pane, marker, true);
         Matcher matcher = sDoc.getMatcher(pattern);
+        int first = -1;
+        int last = -1;
         while(matcher.find()) {
-            markText(pane, matcher.start(), matcher.end(), marker);
+            addRange(pane, layer, matcher.start(), matcher.end());
+            if (first < 0) {
+                first = matcher.start();
+            }
+            last = matcher.end();
+        }
+        // repaint all of the matches at once
+        if (first >= 0) {
+            layer.damage(first, last);
+        }
+    }
+
+
+    /**
+     * Mark the regions from starts[i] to ends[i], for i below count.  They
+     * must be in document order.
+     * @param pane control to use
+     * @param starts
+     * @param ends
+     * @param count
+     * @param marker marker to use for highlighting
+     */
+    public static void markAll(JTextComponent pane, int[] starts, int[] ends,
+            int count, SimpleMarker marker) {
+        if (count == 0) {
+            return;
+        }
+        MarkerLayer layer = getLayer(pane, marker, true);
+        for (int i = 0; i < count; i++) {
+            addRange(pane, layer, starts[i], ends[i]);
+        }
+        layer.damage(starts[0], ends[count - 1]);
+    }
+
+    /**
+     * Replace the regions marked with marker that start between start and
+     * end with the regions from starts[i] to ends[i], for i from first below
+     * last.  They must be in document order, and between start and end.
+     * @param pane control to use
+     * @param start
+     * @param end
+     * @param starts
+     * @param ends
+     * @param first
+     * @param last
+     * @param marker marker to use for highlighting
+     */
+    public static void markAll(JTextComponent pane, int start, int end,
+            int[] starts, int[] ends, int first, int last, SimpleMarker marker) {
+        MarkerLayer layer = getLayer(pane, marker, true);
+        layer.remove(start, end);
+        for (int i = first; i < last; i++) {
+            addRange(pane, layer, starts[i], ends[i]);
         }
+        layer.damage(start, end);
     }
     
     private static final Logger LOG = Logger.getLogger(Markers.class.getName());
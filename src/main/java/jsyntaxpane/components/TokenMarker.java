@@ -15,8 +15,7 @@ package jsyntaxpane.components;
 
 import jsyntaxpane.actions.*;
 import java.awt.Color;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.EnumSet;
 import java.util.Set;
 import java.util.logging.Logger;
 import javax.swing.JEditorPane;
@@ -40,7 +39,7 @@ public class TokenMarker implements SyntaxComponent, CaretListener {
     public static final String PROPERTY_TOKENTYPES = "TokenMarker.TokenTypes";
     private static final int DEFAULT_COLOR = 16772710;
     private JEditorPane pane;
-    private Set<TokenType> tokenTypes = new HashSet<TokenType>();
+    private Set<TokenType> tokenTypes = EnumSet.noneOf(TokenType.class);
     private Markers.SimpleMarker marker;
 
     /**
@@ -73,14 +72,11 @@ public class TokenMarker implements SyntaxComponent, CaretListener {
      */
     void addMarkers(Token tok) {
         SyntaxDocument sDoc = (SyntaxDocument) pane.getDocument();
+        // all the tokens are marked, not only the lexed ones
+        sDoc.ensureParsed(sDoc.getLength());
         sDoc.readLock();
-        String text = tok.getText(sDoc);
-        Iterator<Token> it = sDoc.getTokens(0, sDoc.getLength());
-        while (it.hasNext()) {
-            Token nextToken = it.next();
-            if (nextToken.length == tok.length && text.equals(nextToken.getText(sDoc))) {
-                Markers.markToken(pane, nextToken, marker);
-            }
+        for (Token sameToken : sDoc.getSameTokens(tok, tokenTypes)) {
+            Markers.markToken(pane, sameToken, marker);
         }
         sDoc.readUnlock();
     }
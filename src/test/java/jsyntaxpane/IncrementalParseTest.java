@@ -0,0 +1,65 @@
+/*
+ * Copyright 2008 Ayman Al-Sairafi ayman.alsairafi@gmail.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License 
+ *       at http://www.apache.org/licenses/LICENSE-2.0 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and 
+ * limitations under the License.  
+ */
+package jsyntaxpane;
+
+import java.util.Iterator;
+import javax.swing.text.BadLocationException;
+import jsyntaxpane.lexers.PythonLexer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Checks incremental parses against a full lex of the same text.
+ *
+ * @author Ayman Al-Sairafi
+ */
+public class IncrementalParseTest {
+
+    private static String tokens(SyntaxDocument doc) {
+        doc.ensureParsed(doc.getLength());
+        StringBuilder sb = new StringBuilder();
+        Iterator<Token> it = doc.getTokens(0, doc.getLength());
+        while (it.hasNext()) {
+            sb.append(it.next()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void assertSameAsFullLex(SyntaxDocument doc)
+            throws BadLocationException {
+        SyntaxDocument full = new SyntaxDocument(new PythonLexer());
+        full.insertString(0, doc.getText(0, doc.getLength()), null);
+        assertEquals(tokens(full), tokens(doc));
+    }
+
+    /**
+     * The Python lexer skips the lone quotes in a long string without
+     * counting them in the string token, so the token ends before the lexer
+     * stopped, and the lexer must not be restarted there.  Restarting at the
+     * end of this string would lex the last two quotes as another string.
+     */
+    @Test
+    public void testEditAfterQuoteInLongString() throws BadLocationException {
+        SyntaxDocument doc = new SyntaxDocument(new PythonLexer());
+        doc.setIncremental(true);
+        doc.insertString(0, "s = \"\"\"a \" b \" c\"\"\"\nx = 1\ny = \"c\"\n", null);
+        tokens(doc);
+        doc.insertString(doc.getLength(), "z = 2\n", null);
+        assertSameAsFullLex(doc);
+        doc.insertString(22, "w", null);
+        assertSameAsFullLex(doc);
+        doc.remove(22, 1);
+        assertSameAsFullLex(doc);
+    }
+}